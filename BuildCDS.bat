@@ -0,0 +1,3 @@
+@echo off
+javac ThreePrisonersDilemma.java
+java -XX:ArchiveClassesAtExit=ThreePrisonersDilemma.jsa -Xlog:cds=off -Xlog:cds+dynamic=off ThreePrisonersDilemma
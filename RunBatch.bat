@@ -0,0 +1,4 @@
+@echo off
+javac ThreePrisonersDilemma.java
+java ThreePrisonersDilemma batch batch.txt
+PAUSE
\ No newline at end of file
@@ -0,0 +1,3 @@
+@echo off
+java -XX:SharedArchiveFile=ThreePrisonersDilemma.jsa ThreePrisonersDilemma
+PAUSE
\ No newline at end of file
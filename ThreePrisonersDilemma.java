@@ -1,3 +1,8 @@
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.*;
+
 public class ThreePrisonersDilemma {
 
 	/*
@@ -42,6 +47,20 @@ public class ThreePrisonersDilemma {
 	 opponent did) and must compute the next action.  */
 
 
+	/* Randomness used by the strategies and for the length of each match. By
+	 default this is Math.random(); a run that has to be reproducible (see
+	 playMatches) installs a seeded generator for the current thread instead. */
+	static final ThreadLocal<Random> rng = new ThreadLocal<>();
+
+	public static double random() {
+		Random r = rng.get();
+		return r == null ? Math.random() : r.nextDouble();
+	}
+
+	static int drawRounds() {
+		return 90 + (int)Math.rint(20 * random()); // Between 90 and 110 rounds
+	}
+
 	abstract class Player {
 		// This procedure takes in the number of rounds elapsed so far (n), and
 		// the previous plays in the match, and returns the appropriate action.
@@ -54,7 +73,7 @@ public class ThreePrisonersDilemma {
 			return result.substring(result.indexOf('$')+1);
 		}
 	}
-	class Chen_Zhiwei_Player extends Player {
+	class Chen_Zhiwei_Player extends Player implements PayoffAware {
 
 		int[][][] payoff = {
 			{{6,3},  //payoffs when first and second players cooperate
@@ -66,7 +85,21 @@ public class ThreePrisonersDilemma {
 		int opp1Score = 0;
 		int opp2Score = 0;
 
+		OpponentClassifier opp1 = new OpponentClassifier();
+		OpponentClassifier opp2 = new OpponentClassifier();
+
+		public void usePayoff(int[][][] payoff) {
+			this.payoff = payoff;
+		}
+
 		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+			// Each classifier takes the last round once, with what the other two
+			// did the round before it.
+			if (n > 0) {
+				opp1.observe(oppHistory1[n-1], n > 1 ? myHistory[n-2] : 0, n > 1 ? oppHistory2[n-2] : 0);
+				opp2.observe(oppHistory2[n-1], n > 1 ? myHistory[n-2] : 0, n > 1 ? oppHistory1[n-2] : 0);
+			}
+
 			// First Law: Always cooperate in first 2 rounds
 			if (n < 2) return 0;
 
@@ -78,14 +111,14 @@ public class ThreePrisonersDilemma {
 
 			// Third Law: if one of the opponents is Nasty, then always defect
 			boolean isOpp1Nasty, isOpp2Nasty;
-			isOpp1Nasty = isNasty(n, oppHistory1);
-			isOpp2Nasty = isNasty(n, oppHistory2);
+			isOpp1Nasty = isNasty(n, opp1);
+			isOpp2Nasty = isNasty(n, opp2);
 			if (isOpp1Nasty || isOpp2Nasty) return 1;
 
 			// Fourth Law: if one of the opponents is Random, then always defect
 			boolean isOpp1Random, isOpp2Random;
-			isOpp1Random = isRandom(n, oppHistory1);
-			isOpp2Random = isRandom(n, oppHistory2);
+			isOpp1Random = isRandom(n, opp1);
+			isOpp2Random = isRandom(n, opp2);
 			if (isOpp1Random || isOpp2Random) return 1;
 
 			// Fifth Law: if my current score is lower than one of the opp, then always defect
@@ -95,30 +128,20 @@ public class ThreePrisonersDilemma {
 			if (myScore < opp1Score || myScore < opp2Score) return 1;
 
 			// Sixth Law: If above laws don't apply, then be a T4TPlayer
-			if (Math.random() < 0.5) return oppHistory1[n-1];
+			if (random() < 0.5) return oppHistory1[n-1];
 			else return oppHistory2[n-1];
 		}
 
-		boolean isNasty(int n, int[] oppHistory) {
-			int cnt = 0;
-			for (int i=0; i<n; i++){
-				if (oppHistory[i] == 1)
-					cnt++;
-			}
-
-			if (cnt == n) return true;
+		boolean isNasty(int n, OpponentClassifier opp) {
+			if (opp.defections() == n) return true;
 			else return false;
 		}
 
-		boolean isRandom(int n, int[] oppHistory) {
-			int sum = 0;
+		boolean isRandom(int n, OpponentClassifier opp) {
 			double eps = 0.025;
-			for (int i=0; i<n; i++) {
-				sum += oppHistory[i];
-			}
 
 			// if ratio is roughly 0.5, then the opponent is highly likely to be random
-			double ratio = (double) sum / n;
+			double ratio = (double) opp.defections() / n;
 			if (Math.abs(ratio - 0.5) < eps) return true;
 			else return false;
 		}
@@ -200,7 +223,7 @@ public class ThreePrisonersDilemma {
 			/* 2. If both players are mostly cooperating */
 			if (perOpp1Coop > 90 && perOpp2Coop > 90) {
 				int range = (10 - 5) + 1; // Max: 10, Min: 5
-				int random = (int) (Math.random() * range) + 5;
+				int random = (int) (random() * range) + 5;
 				
 				if (n > (90 + random))  // Selfish: Last min defect
 					return 1;
@@ -296,7 +319,7 @@ public class ThreePrisonersDilemma {
 				return 0;
 
 
-			if(Math.random()>0.8)
+			if(random()>0.8)
 			{
 				defected = true;
 				return 1;
@@ -414,10 +437,15 @@ public class ThreePrisonersDilemma {
 			return 0;
 		}
 	}
-	class TiltNRecover extends Player{
+	class TiltNRecover extends EventPlayer{
 		boolean defected = false;
 		int recovery = 0;
-		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+		int lastOpp1 = 0, lastOpp2 = 0;
+		void onRoundResult(int myAction, int opp1Action, int opp2Action) {
+			lastOpp1 = opp1Action;
+			lastOpp2 = opp2Action;
+		}
+		int nextAction(int n) {
 
 			//return 1 if defected
 			if(defected)
@@ -431,7 +459,7 @@ public class ThreePrisonersDilemma {
 			//if first turn, co operate
 			if(n > 0){
 				//if any opponent defects, we permanently defect
-				if(oppHistory1[n-1] > 0 || oppHistory2[n-1] > 0)
+				if(lastOpp1 > 0 || lastOpp2 > 0)
 				{
 					defected = true;
 					recovery = 0;
@@ -474,22 +502,23 @@ public class ThreePrisonersDilemma {
 			return 0;
 		}
 	}
-	class Thanos extends Player{
+	class Thanos extends EventPlayer{
 		int balancer = 0;
-		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+		void onRoundResult(int myAction, int opp1Action, int opp2Action) {
+			if(opp1Action>0)
+				balancer--;
+			else
+				balancer++;
 
+			if(opp2Action>0)
+				balancer--;
+			else
+				balancer++;
+		}
+		int nextAction(int n) {
 
-			if(n > 0){
-				if(oppHistory1[n-1]>0)
-					balancer--;
-				else
-					balancer++;
-				
-				if(oppHistory2[n-1]>0)
-					balancer--;
-				else
-					balancer++;
 
+			if(n > 0){
 				if(balancer < 0)
 					return 1;
 			}
@@ -545,7 +574,7 @@ public class ThreePrisonersDilemma {
 			return 0;
 		}
 	}
-	class YangLinRamal_Isaac_Player10 extends Player{
+	class YangLinRamal_Isaac_Player10 extends Player implements PayoffAware {
 		/*
 		Order of best scenarios
 		Self  OppCoop	OppDefect	Points
@@ -570,6 +599,12 @@ public class ThreePrisonersDilemma {
 		double defMod1 = 0;
 		double defMod2 = 0;
 
+		int[][][] payoff; // set when a sweep scores with another matrix
+
+		public void usePayoff(int[][][] payoff) {
+			this.payoff = payoff;
+		}
+
 		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
 
 			int returnValue = 0;
@@ -683,6 +718,8 @@ public class ThreePrisonersDilemma {
 
 		private int calculateScore(int choice1, int choice2, int choice3)
 		{
+			if (payoff != null)
+				return payoff[choice1][choice2][choice3];
 			switch(choice1){
 				case 0:
 					if(choice2 == 0 && choice2 == choice3)
@@ -746,13 +783,17 @@ public class ThreePrisonersDilemma {
 			return 1;
 		}
 	}
-	class YangLinRamal_Isaac_Player extends Player {
+	// The event-driven form of YangLinRamal_Isaac_Player.java, which stays a
+	// selectAction Player as the assignment requires; the moves are the same.
+	class YangLinRamal_Isaac_Player extends EventPlayer {
 		boolean opp1Def = false,opp2Def = false;  //Flags
-    	int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+		void onRoundResult(int myAction, int opp1Action, int opp2Action) {
+			opp1Def = (opp1Action>0 || opp1Def); //Check if opponents defect on previous turn
+			opp2Def = (opp2Action>0 || opp2Def);
+		}
+    	int nextAction(int n) {
 			if(n==0)    //Co-operate on first turn
 				return 0;
-			opp1Def = (oppHistory1[n-1]>0 || opp1Def); //Check if opponents defect on previous turn
-			opp2Def = (oppHistory2[n-1]>0 || opp2Def);
 			return (opp1Def&&opp2Def)||(n>=109) ? 1 : 0; 
 			//If both have defected, we permanently defect;
 			//We defect on the last turn to protect ourselves from last minute defectors
@@ -801,6 +842,165 @@ public class ThreePrisonersDilemma {
 			return 0;
 		}
 	}
+	/* OpponentClassifier keeps a running estimate of what kind of strategy an
+	 opponent is playing, so that strategies need not rescan the histories every
+	 round to find out. Each round costs O(1) (at most MAX_PERIOD steps), and
+	 update() only looks at the rounds added since its last call, so a strategy
+	 can simply call it at the top of selectAction. Nothing is pushed to the
+	 strategy: it owns one classifier per opponent and pulls, calling update()
+	 (or observe() move by move) when it wants the estimate brought up to date.
+
+	 The styles considered are always cooperate, always defect, random (defects
+	 with some fixed unknown probability), tit for tat (as T4TPlayer: cooperates
+	 first, then copies one of the others' previous moves at random, so it
+	 defects when both defected, cooperates when neither did and is even odds
+	 when they differ),
+	 grim (cooperates until one of the others has defected, then defects for
+	 good) and periodic (repeats its first p moves, p = 2..MAX_PERIOD). A
+	 deterministic style is allowed to be off with probability ERROR per round,
+	 the random style is scored with a uniform prior on its defection rate, and
+	 all styles are equally likely to begin with; confidence() is the resulting
+	 posterior probability and style() the most likely style. The classify mode
+	 (checkClassifier) feeds it generated streams of every style and checks
+	 that each is recognised. */
+	static class OpponentClassifier {
+		static final int ALWAYS_COOPERATE = 0, ALWAYS_DEFECT = 1, RANDOM = 2, TIT_FOR_TAT = 3, GRIM = 4, PERIODIC = 5;
+		static final String[] STYLES = {"always cooperate", "always defect", "random", "tit for tat", "grim", "periodic"};
+		static final double ERROR = 0.01;
+		static final int MAX_PERIOD = 12;
+
+		int rounds = 0;
+		int defections = 0;
+		boolean provoked = false; // whether the others have defected yet
+		int[] misses = new int[5]; // per deterministic style; RANDOM is unused
+		int split = 0; // rounds after the others differed, where tit for tat is even odds
+		int[] periodMisses = new int[MAX_PERIOD+1];
+		int[] recent = new int[MAX_PERIOD]; // the opponent's last moves, by round % MAX_PERIOD
+		double logRandom = 0;
+
+		// Catch up with rounds up to n-1 of the opponent's history. mine and other
+		// are the histories of the players the opponent was reacting to.
+		void update(int n, int[] oppHistory, int[] mine, int[] other) {
+			for (int r = rounds; r < n; r++)
+				observe(oppHistory[r], r == 0 ? 0 : mine[r-1], r == 0 ? 0 : other[r-1]);
+		}
+
+		// Adds the opponent's next move, and what the other two did the round before.
+		void observe(int move, int prevMine, int prevOther) {
+			int n = rounds;
+			int tookOffence = n == 0 ? 0 : prevMine | prevOther;
+			provoked |= tookOffence == 1;
+			misses[ALWAYS_COOPERATE] += move;
+			misses[ALWAYS_DEFECT] += 1 - move;
+			if (n > 0 && prevMine != prevOther)
+				split++;
+			else
+				misses[TIT_FOR_TAT] += move ^ (n == 0 ? 0 : prevMine & prevOther);
+			misses[GRIM] += move ^ (provoked ? 1 : 0);
+			for (int p=2; p<=MAX_PERIOD && p<=n; p++)
+				periodMisses[p] += move ^ recent[(n - p) % MAX_PERIOD];
+			logRandom += Math.log((move == 1 ? defections + 1 : n - defections + 1) / (double)(n + 2));
+			recent[n % MAX_PERIOD] = move;
+			defections += move;
+			rounds++;
+		}
+
+		int rounds() {
+			return rounds;
+		}
+
+		int defections() {
+			return defections;
+		}
+
+		double[] logLikelihoods() {
+			double hit = Math.log(1 - ERROR), miss = Math.log(ERROR);
+			double[] l = new double[STYLES.length];
+			for (int style : new int[] {ALWAYS_COOPERATE, ALWAYS_DEFECT, TIT_FOR_TAT, GRIM})
+				l[style] = (rounds - misses[style]) * hit + misses[style] * miss;
+			l[TIT_FOR_TAT] += split * (Math.log(0.5) - hit);
+			l[RANDOM] = logRandom;
+			// Periodic: the first p moves are free, the rest must repeat them.
+			double max = Double.NEGATIVE_INFINITY, sum = 0;
+			double[] periods = new double[MAX_PERIOD+1];
+			for (int p=2; p<=MAX_PERIOD; p++) {
+				int compared = Math.max(0, rounds - p);
+				periods[p] = Math.min(p, rounds) * Math.log(0.5) + (compared - periodMisses[p]) * hit + periodMisses[p] * miss;
+				max = Math.max(max, periods[p]);
+			}
+			for (int p=2; p<=MAX_PERIOD; p++)
+				sum += Math.exp(periods[p] - max);
+			l[PERIODIC] = max + Math.log(sum / (MAX_PERIOD - 1));
+			return l;
+		}
+
+		// Posterior probability that the opponent plays the given style.
+		double confidence(int style) {
+			double[] l = logLikelihoods();
+			double max = Double.NEGATIVE_INFINITY, sum = 0;
+			for (double x : l)
+				max = Math.max(max, x);
+			for (double x : l)
+				sum += Math.exp(x - max);
+			return Math.exp(l[style] - max) / sum;
+		}
+
+		// The most likely style.
+		int style() {
+			double[] l = logLikelihoods();
+			int best = 0;
+			for (int s=1; s<l.length; s++)
+				if (l[s] > l[best])
+					best = s;
+			return best;
+		}
+	}
+
+	// Generates `trials` streams of `rounds` moves for every style, against two
+	// others who defect one round in ten, and checks that the classifier names
+	// the style each stream was made with.
+	static boolean checkClassifier(int rounds, int trials, long seed) {
+		Random random = new Random(seed);
+		boolean passed = true;
+		for (int style=0; style<OpponentClassifier.STYLES.length; style++) {
+			int recognised = 0;
+			double confidence = 0;
+			for (int t=0; t<trials; t++) {
+				OpponentClassifier classifier = new OpponentClassifier();
+				double rate = 0.2 + 0.6 * random.nextDouble();
+				int[] pattern = new int[2 + random.nextInt(OpponentClassifier.MAX_PERIOD - 1)];
+				pattern[0] = 0;
+				pattern[1] = 1; // not constant
+				for (int i=2; i<pattern.length; i++)
+					pattern[i] = random.nextInt(2);
+				boolean provoked = false;
+				int prevMine = 0, prevOther = 0;
+				for (int n=0; n<rounds; n++) {
+					int move;
+					switch (style) {
+					case OpponentClassifier.ALWAYS_COOPERATE: move = 0; break;
+					case OpponentClassifier.ALWAYS_DEFECT: move = 1; break;
+					case OpponentClassifier.RANDOM: move = random.nextDouble() < rate ? 1 : 0; break;
+					case OpponentClassifier.TIT_FOR_TAT: move = random.nextBoolean() ? prevMine : prevOther; break;
+					case OpponentClassifier.GRIM: move = provoked ? 1 : 0; break;
+					default: move = pattern[n % pattern.length];
+					}
+					classifier.observe(move, prevMine, prevOther);
+					prevMine = random.nextInt(10) == 0 ? 1 : 0;
+					prevOther = random.nextInt(10) == 0 ? 1 : 0;
+					provoked |= (prevMine | prevOther) == 1;
+				}
+				if (classifier.style() == style)
+					recognised++;
+				confidence += classifier.confidence(style);
+			}
+			System.out.printf("%s %s: %d of %d streams recognised, mean confidence %.3f%n",
+				recognised == trials ? "ok  " : "FAIL", OpponentClassifier.STYLES[style], recognised, trials, confidence / trials);
+			passed &= recognised == trials;
+		}
+		return passed;
+	}
+
 	/* Here are four simple strategies: */
 
 	class NicePlayer extends Player {
@@ -820,7 +1020,7 @@ public class ThreePrisonersDilemma {
 
 		//RandomPlayer randomly picks his action each time
 		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
-			if (Math.random() < 0.5)
+			if (random() < 0.5)
 				return 0;  //cooperates half the time
 			else
 				return 1;  //defects half the time
@@ -857,7 +1057,7 @@ public class ThreePrisonersDilemma {
 		//Note that this class has a non-trivial constructor.
 		int action;
 		FreakyPlayer() {
-			if (Math.random() < 0.5)
+			if (random() < 0.5)
 				action = 0;  //cooperates half the time
 			else
 				action = 1;  //defects half the time
@@ -872,7 +1072,7 @@ public class ThreePrisonersDilemma {
 		//and uses the 'tit-for-tat' strategy against them
 		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
 			if (n==0) return 0; //cooperate by default
-			if (Math.random() < 0.5)
+			if (random() < 0.5)
 				return oppHistory1[n-1];
 			else
 				return oppHistory2[n-1];
@@ -900,7 +1100,7 @@ public class ThreePrisonersDilemma {
 		//and uses the 'tit-for-tat' strategy against them
 		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
 			if (n==0) return 1; //cooperate by default
-			if (Math.random() < 0.5)
+			if (random() < 0.5)
 				return oppHistory1[n-1];
 			else
 				return oppHistory2[n-1];
@@ -967,6 +1167,199 @@ public class ThreePrisonersDilemma {
 	}
 	
 
+	/* Strategies submitted from outside this file are loaded as plugins with the
+	 -plugins option, which takes a list of jars and class directories separated
+	 by the platform path separator. Player and its selectAction are package
+	 private, which a class from another loader cannot extend or override, so a
+	 plugin instead implements the public Strategy interface below and has a
+	 public no-argument constructor:
+
+		public class MyPlayer implements ThreePrisonersDilemma.Strategy {
+			public int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+				...
+			}
+		}
+
+	 Each entry on the path gets its own class loader, so submissions cannot see
+	 each other's classes. Plugins join the field after the players in
+	 makePlayer and can be named in a roster by their class name.
+
+	 Plugin strategies are never called directly. Every call runs on a sandbox
+	 thread and has to answer within pluginMoveBudget milliseconds, and a
+	 strategy may allocate at most pluginAllocationLimit bytes in one match. A
+	 strategy that runs out of time, goes over its allocation, throws or returns
+	 something other than 0 or 1 defects on that move and for the rest of the
+	 match. A thread stuck in a runaway call cannot be stopped, so a call
+	 still running after a second budget is taken as a runaway and its
+	 strategy is banned: it defects in all its later matches without being
+	 called, and one bad submission cannot hold up the tournament or pile up
+	 stuck threads. A call that finishes late (a GC pause can push any call
+	 over) only costs the match, until it has happened PLUGIN_OVERRUNS times.
+	 The first call to each strategy loads and initialises its class, so it
+	 gets ten times the budget.
+
+	 A plugin that draws from ThreePrisonersDilemma.random() instead of
+	 Math.random() follows the seed of a seeded run: each call gets a generator
+	 on the sandbox thread seeded from the calling match's own generator. */
+
+	public interface Strategy {
+		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2);
+	}
+
+	static final List<Class<?>> plugins = new ArrayList<>();
+	static final List<String> pluginPaths = new ArrayList<>();
+	static long pluginMoveBudget = 50; // milliseconds
+	static long pluginAllocationLimit = 64L << 20; // bytes per match
+	static final Set<Class<?>> bannedPlugins = ConcurrentHashMap.newKeySet();
+	static final int PLUGIN_OVERRUNS = 3;
+	static final Map<Class<?>, Integer> pluginOverruns = new ConcurrentHashMap<>();
+	static final Set<Class<?>> calledPlugins = ConcurrentHashMap.newKeySet();
+
+	static final ExecutorService sandbox = Executors.newCachedThreadPool(task -> {
+		Thread t = new Thread(task, "plugin sandbox");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static void loadPlugins(String path) throws IOException {
+		pluginPaths.add(path);
+		for (String entry : path.split(File.pathSeparator)) {
+			File file = new File(entry);
+			if (!file.exists())
+				throw new FileNotFoundException(entry);
+			List<String> classNames = new ArrayList<>();
+			if (file.isDirectory()) {
+				listClasses(file, "", classNames);
+			} else {
+				try (java.util.jar.JarFile jar = new java.util.jar.JarFile(file)) {
+					for (Enumeration<java.util.jar.JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+						String name = e.nextElement().getName();
+						if (name.endsWith(".class"))
+							classNames.add(name.substring(0, name.length() - 6).replace('/', '.'));
+					}
+				}
+			}
+			java.net.URLClassLoader loader = new java.net.URLClassLoader(
+				new java.net.URL[] {file.toURI().toURL()}, ThreePrisonersDilemma.class.getClassLoader());
+			for (String name : classNames) {
+				Class<?> c;
+				try {
+					c = Class.forName(name, false, loader);
+				} catch (ClassNotFoundException | LinkageError e) {
+					System.out.println("Skipping " + name + " from " + entry + ": " + e);
+					continue;
+				}
+				if (c.getClassLoader() != loader || !Strategy.class.isAssignableFrom(c)
+						|| java.lang.reflect.Modifier.isAbstract(c.getModifiers()))
+					continue;
+				try {
+					c.getConstructor();
+				} catch (NoSuchMethodException e) {
+					System.out.println("Skipping " + name + " from " + entry + ": no public constructor without arguments");
+					continue;
+				}
+				plugins.add(c);
+			}
+		}
+	}
+
+	static void listClasses(File dir, String prefix, List<String> classNames) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (f.isDirectory())
+				listClasses(f, prefix + f.getName() + ".", classNames);
+			else if (f.getName().endsWith(".class"))
+				classNames.add(prefix + f.getName().substring(0, f.getName().length() - 6));
+		}
+	}
+
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	// Runs a plugin strategy on the sandbox, within its time and allocation budget.
+	class SandboxedPlayer extends Player {
+		Class<?> strategy;
+		Strategy inner;
+		long allocated = 0;
+		boolean disqualified = false;
+
+		SandboxedPlayer(Constructor<?> maker) {
+			strategy = maker.getDeclaringClass();
+			disqualified = bannedPlugins.contains(strategy);
+			inner = (Strategy) call(() -> maker.newInstance());
+		}
+
+		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+			// Copies, so a plugin can neither change the histories the other players
+			// see nor keep reading them after its call.
+			int[] mine = Arrays.copyOf(myHistory, n), opp1 = Arrays.copyOf(oppHistory1, n),
+				opp2 = Arrays.copyOf(oppHistory2, n);
+			Object action = call(() -> inner.selectAction(n, mine, opp1, opp2));
+			if (!disqualified && (Integer.valueOf(0).equals(action) || Integer.valueOf(1).equals(action)))
+				return (Integer) action;
+			disqualified = true;
+			return 1;
+		}
+
+		// Returns the result of the call, or null if the player is disqualified.
+		Object call(Callable<?> task) {
+			if (disqualified)
+				return null;
+			Random caller = rng.get();
+			long seed = caller == null ? 0 : caller.nextLong();
+			// The call returns its value and what it allocated, so allocated is
+			// only ever touched on this thread.
+			Future<Object[]> result = sandbox.submit(() -> {
+				rng.set(caller == null ? null : new Random(seed));
+				long before = allocatedBytes();
+				try {
+					Object value = task.call();
+					return new Object[] {value, allocatedBytes() - before};
+				} finally {
+					rng.remove();
+				}
+			});
+			try {
+				long budget = calledPlugins.add(strategy) ? 10 * pluginMoveBudget : pluginMoveBudget;
+				Object[] outcome;
+				try {
+					outcome = result.get(budget, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					boolean runaway = false;
+					try {
+						result.get(budget, TimeUnit.MILLISECONDS);
+					} catch (TimeoutException stuck) {
+						result.cancel(true);
+						runaway = true;
+					} catch (ExecutionException late) {
+						// threw after the budget; still an overrun
+					}
+					if ((runaway || pluginOverruns.merge(strategy, 1, Integer::sum) >= PLUGIN_OVERRUNS)
+							&& bannedPlugins.add(strategy))
+						System.err.println(strategy.getName() + (runaway ? " did not return" : " ran over its "
+							+ pluginMoveBudget + "ms budget " + PLUGIN_OVERRUNS + " times") + " and is banned");
+					disqualified = true;
+					return null;
+				}
+				allocated += (Long) outcome[1];
+				if (allocated <= pluginAllocationLimit)
+					return outcome[0];
+			} catch (ExecutionException e) {
+				// the player threw; treat it as a defection
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			disqualified = true;
+			return null;
+		}
+	}
+
 	/* In our tournament, each pair of strategies will play one match against each other.
 	 This procedure simulates a single match and returns the scores. */
 	float[] scoresOfMatch(Player A, Player B, Player C, int rounds) {
@@ -998,6 +1391,316 @@ public class ThreePrisonersDilemma {
 		return result;
 	}
 
+	/* Event-driven players. Most strategies only look at the last round, so
+	 rather than being handed three full histories on every call an EventPlayer
+	 is told the joint action after each round (onRoundResult, with its own
+	 action first and the opponents in the usual oppHistory1/oppHistory2 order)
+	 and is asked for its next action with nextAction(n). On the history-based
+	 engines selectAction replays the last round as an event, so an EventPlayer
+	 plays the same everywhere. */
+	abstract class EventPlayer extends Player {
+		abstract void onRoundResult(int myAction, int opp1Action, int opp2Action);
+
+		abstract int nextAction(int n);
+
+		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+			if (n > 0)
+				onRoundResult(myHistory[n-1], oppHistory1[n-1], oppHistory2[n-1]);
+			return nextAction(n);
+		}
+	}
+
+	// Lets a history-based strategy take part in an event-driven match by
+	// building the histories it expects from the events.
+	class HistoryAdapter extends EventPlayer {
+		final Player player;
+		int[] myHistory = new int[0], oppHistory1 = new int[0], oppHistory2 = new int[0];
+
+		HistoryAdapter(Player player) {
+			this.player = player;
+		}
+
+		void onRoundResult(int myAction, int opp1Action, int opp2Action) {
+			myHistory = extendIntArray(myHistory, myAction);
+			oppHistory1 = extendIntArray(oppHistory1, opp1Action);
+			oppHistory2 = extendIntArray(oppHistory2, opp2Action);
+		}
+
+		int nextAction(int n) {
+			return player.selectAction(n, myHistory, oppHistory1, oppHistory2);
+		}
+	}
+
+	EventPlayer events(Player player) {
+		return player instanceof EventPlayer ? (EventPlayer) player : new HistoryAdapter(player);
+	}
+
+	// The event-driven scoresOfMatch. When all three players are EventPlayers
+	// no histories are kept at all; otherwise only the adapters keep them.
+	float[] scoresOfEventMatch(Player A, Player B, Player C, int rounds) {
+		EventPlayer a = events(A), b = events(B), c = events(C);
+		float ScoreA = 0, ScoreB = 0, ScoreC = 0;
+
+		for (int i=0; i<rounds; i++) {
+			int PlayA = a.nextAction(i);
+			int PlayB = b.nextAction(i);
+			int PlayC = c.nextAction(i);
+			ScoreA = ScoreA + payoff[PlayA][PlayB][PlayC];
+			ScoreB = ScoreB + payoff[PlayB][PlayC][PlayA];
+			ScoreC = ScoreC + payoff[PlayC][PlayA][PlayB];
+			a.onRoundResult(PlayA, PlayB, PlayC);
+			b.onRoundResult(PlayB, PlayC, PlayA);
+			c.onRoundResult(PlayC, PlayA, PlayB);
+		}
+		float[] result = {ScoreA/rounds, ScoreB/rounds, ScoreC/rounds};
+		return result;
+	}
+
+	/* A noisy channel. Each action is flipped with probability `flip`. With
+	 trembling hands (misperception == false) the flipped action is what is
+	 played, scored and seen by everyone. With misperception the intended action
+	 is played and scored, but each opponent sees it flipped independently, so
+	 every player keeps its own view of the other two players' histories.
+
+	 The noise comes from a generator created for each match (seeded from
+	 random() when there is noise, so seeded runs stay reproducible) and is
+	 applied without branching: a flip is the sign bit of (uniform 63-bit
+	 value - threshold). */
+	class NoisyEngine implements MatchEngine {
+		final long threshold;
+		final boolean misperception;
+
+		NoisyEngine(double flip, boolean misperception) {
+			if (flip < 0 || flip > 1)
+				throw new IllegalArgumentException("Flip probability must be between 0 and 1");
+			this.threshold = flip >= 1 ? Long.MAX_VALUE : (long)(flip * 0x1p63);
+			this.misperception = misperception;
+		}
+
+		public float[] play(Player A, Player B, Player C, int rounds) {
+			// Without noise nothing is drawn from random(), so the strategies see the
+			// same random numbers as in scoresOfMatch.
+			long t = threshold;
+			SplittableRandom noise = new SplittableRandom(t == 0 ? 0 : (long)(random() * 0x1p53));
+			int[] HistoryA = new int[0], HistoryB = new int[0], HistoryC = new int[0];
+			// What each player has seen of the other two (the same as the real
+			// histories with trembling hands).
+			int[] BseenByA = new int[0], CseenByA = new int[0];
+			int[] CseenByB = new int[0], AseenByB = new int[0];
+			int[] AseenByC = new int[0], BseenByC = new int[0];
+			float ScoreA = 0, ScoreB = 0, ScoreC = 0;
+
+			for (int i=0; i<rounds; i++) {
+				int PlayA = A.selectAction(i, HistoryA, BseenByA, CseenByA);
+				int PlayB = B.selectAction(i, HistoryB, CseenByB, AseenByB);
+				int PlayC = C.selectAction(i, HistoryC, AseenByC, BseenByC);
+				if (misperception) {
+					BseenByA = extendIntArray(BseenByA, PlayB ^ (int)(((noise.nextLong() >>> 1) - t) >>> 63));
+					CseenByA = extendIntArray(CseenByA, PlayC ^ (int)(((noise.nextLong() >>> 1) - t) >>> 63));
+					CseenByB = extendIntArray(CseenByB, PlayC ^ (int)(((noise.nextLong() >>> 1) - t) >>> 63));
+					AseenByB = extendIntArray(AseenByB, PlayA ^ (int)(((noise.nextLong() >>> 1) - t) >>> 63));
+					AseenByC = extendIntArray(AseenByC, PlayA ^ (int)(((noise.nextLong() >>> 1) - t) >>> 63));
+					BseenByC = extendIntArray(BseenByC, PlayB ^ (int)(((noise.nextLong() >>> 1) - t) >>> 63));
+				} else {
+					PlayA ^= (int)(((noise.nextLong() >>> 1) - t) >>> 63);
+					PlayB ^= (int)(((noise.nextLong() >>> 1) - t) >>> 63);
+					PlayC ^= (int)(((noise.nextLong() >>> 1) - t) >>> 63);
+				}
+				ScoreA = ScoreA + payoff[PlayA][PlayB][PlayC];
+				ScoreB = ScoreB + payoff[PlayB][PlayC][PlayA];
+				ScoreC = ScoreC + payoff[PlayC][PlayA][PlayB];
+				HistoryA = extendIntArray(HistoryA, PlayA);
+				HistoryB = extendIntArray(HistoryB, PlayB);
+				HistoryC = extendIntArray(HistoryC, PlayC);
+				if (!misperception) {
+					BseenByA = BseenByC = HistoryB;
+					CseenByA = CseenByB = HistoryC;
+					AseenByB = AseenByC = HistoryA;
+				}
+			}
+			float[] result = {ScoreA/rounds, ScoreB/rounds, ScoreC/rounds};
+			return result;
+		}
+	}
+
+	/* The N-player dilemma. In the three-player game the payoff only depends on
+	 the player's own action and on how many of the other two cooperate:
+
+		U(C, k) = 3k,  U(D, k) = 3k + 2   for k cooperating opponents
+
+	 which is where the ordering U(DCC) > U(CCC) > U(DDC) > ... comes from. With
+	 N players we keep the same two lines over the fraction of cooperating
+	 opponents, U(C, k) = 6k/(N-1) and U(D, k) = 2 + 6k/(N-1), so that with
+	 N = 3 the game is exactly the one given by payoff[][][]. Matches need at
+	 least three players: with fewer there is no N-1 to divide by, and the
+	 three-player strategies would have no second opponent. */
+	static float payoffN(int action, int cooperators, int players) {
+		return 2*action + 6f*cooperators/(players-1);
+	}
+
+	abstract class NPlayer {
+		// oppHistories lists the other players starting with the one after this
+		// player and wrapping around, so for N = 3 it is {oppHistory1, oppHistory2}.
+		abstract int selectAction(int n, int[] myHistory, int[][] oppHistories);
+	}
+
+	/* Lets a three-player strategy take part in an N-player match. It sees the
+	 first half of its opponents as oppHistory1 and the second half as
+	 oppHistory2, where a half defected in a round if any player in it did. With
+	 N = 3 each half is a single opponent and the strategy plays exactly as in
+	 scoresOfMatch. */
+	class LegacyNPlayer extends NPlayer {
+		final Player player;
+		int[] opp1 = new int[0], opp2 = new int[0];
+
+		LegacyNPlayer(Player player) {
+			this.player = player;
+		}
+
+		int selectAction(int n, int[] myHistory, int[][] oppHistories) {
+			if (oppHistories.length == 2)
+				return player.selectAction(n, myHistory, oppHistories[0], oppHistories[1]);
+			int half = (oppHistories.length + 1) / 2;
+			while (opp1.length < n) { // catch up with the rounds played since the last call
+				int r = opp1.length, d1 = 0, d2 = 0;
+				for (int p=0; p<half; p++)
+					d1 |= oppHistories[p][r];
+				for (int p=half; p<oppHistories.length; p++)
+					d2 |= oppHistories[p][r];
+				opp1 = extendIntArray(opp1, d1);
+				opp2 = extendIntArray(opp2, d2);
+			}
+			return player.selectAction(n, myHistory, opp1, opp2);
+		}
+	}
+
+	// Plays one match between any number of players; the N-player scoresOfMatch.
+	float[] scoresOfNMatch(NPlayer[] players, int rounds) {
+		int N = players.length;
+		int[][] histories = new int[N][0];
+		int[][][] views = new int[N][N-1][];
+		int[] plays = new int[N];
+		float[] scores = new float[N];
+		for (int i=0; i<rounds; i++) {
+			for (int p=0; p<N; p++) {
+				for (int o=1; o<N; o++)
+					views[p][o-1] = histories[(p+o) % N];
+				plays[p] = players[p].selectAction(i, histories[p], views[p]);
+			}
+			int cooperators = 0;
+			for (int p=0; p<N; p++)
+				cooperators += 1 - plays[p];
+			for (int p=0; p<N; p++) {
+				scores[p] += payoffN(plays[p], cooperators - (1 - plays[p]), N);
+				histories[p] = extendIntArray(histories[p], plays[p]);
+			}
+		}
+		for (int p=0; p<N; p++)
+			scores[p] /= rounds;
+		return scores;
+	}
+
+	/* Multisets. An N-player tournament plays every multiset of N players from
+	 the roster (the N-player version of the i<=j<=k loop), C(P+N-1, N) of them
+	 for P players. Rather than N nested loops, multisets are numbered in
+	 lexicographic order: unrankMultiset finds the multiset with a given number
+	 and nextMultiset steps to the following one, so the numbers can be split
+	 into ranges and played in parallel. */
+
+	// Number of multisets of size k drawn from n values, C(n+k-1, k).
+	static long multichoose(int n, int k) {
+		if (k == 0)
+			return 1;
+		if (n <= 0)
+			return 0;
+		long result = 1;
+		for (int i=1; i<=k; i++)
+			result = result * (n + i - 1) / i;
+		return result;
+	}
+
+	// The number of a multiset (sorted ascending) in lexicographic order.
+	static long rankMultiset(int[] m, int players) {
+		long rank = 0;
+		int v = 0;
+		for (int i=0; i<m.length; i++) {
+			for (; v<m[i]; v++)
+				rank += multichoose(players - v, m.length - i - 1);
+		}
+		return rank;
+	}
+
+	static int[] unrankMultiset(long rank, int players, int size) {
+		int[] m = new int[size];
+		int v = 0;
+		for (int i=0; i<size; i++) {
+			for (;; v++) {
+				long count = multichoose(players - v, size - i - 1);
+				if (rank < count)
+					break;
+				rank -= count;
+			}
+			m[i] = v;
+		}
+		return m;
+	}
+
+	// Steps to the next multiset in lexicographic order; false after the last.
+	static boolean nextMultiset(int[] m, int players) {
+		int i = m.length - 1;
+		while (i >= 0 && m[i] == players - 1)
+			i--;
+		if (i < 0)
+			return false;
+		int v = m[i] + 1;
+		for (; i<m.length; i++)
+			m[i] = v;
+		return true;
+	}
+
+	TournamentResult playNTournament(Roster roster, int N, int repeat, int threads) throws InterruptedException, ExecutionException {
+		if (N < 3)
+			throw new IllegalArgumentException("An N-player match needs at least 3 players, not " + N);
+		int numPlayers = roster.size();
+		long matches = multichoose(numPlayers, N);
+		int chunks = (int)Math.min(matches, threads * 16L);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<double[]>> parts = new ArrayList<>();
+		try {
+			for (int c=0; c<chunks; c++) {
+				final long from = matches * c / chunks, to = matches * (c+1) / chunks;
+				parts.add(pool.submit(() -> {
+					double[] totals = new double[numPlayers];
+					int[] m = unrankMultiset(from, numPlayers, N);
+					for (long r = from; r < to; r++) {
+						for (int x=0; x<repeat; x++) {
+							NPlayer[] players = new NPlayer[N];
+							for (int p=0; p<N; p++)
+								players[p] = new LegacyNPlayer(roster.make(this, m[p]));
+							float[] matchResults = scoresOfNMatch(players, drawRounds());
+							for (int p=0; p<N; p++)
+								totals[m[p]] += matchResults[p];
+						}
+						nextMultiset(m, numPlayers);
+					}
+					return totals;
+				}));
+			}
+			TournamentResult result = new TournamentResult(roster.names, repeat);
+			for (Future<double[]> part : parts) { // merged in order, so totals do not depend on timing
+				double[] totals = part.get();
+				for (int i=0; i<numPlayers; i++)
+					result.totalScore[i] += (float)totals[i];
+			}
+			result.lossRecored = null;
+			if (verbose)
+				System.out.println(matches * repeat + " matches of " + N + " players");
+			return result;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	/* The procedure makePlayer is used to reset each of the Players
 	 (strategies) in between matches. When you add your own strategy,
 	 you will need to add a new entry to makePlayer, and change numPlayers.*/
@@ -1080,104 +1783,3313 @@ public class ThreePrisonersDilemma {
 		throw new RuntimeException("Bad argument passed to makePlayer");
 	}
 
+	/* A roster is the list of strategies taking part in a tournament. Strategies
+	 are looked up by class name, so a tournament can be described outside this
+	 file (see runBatch). As with makePlayer, slot 0 is the player whose win/loss
+	 record is displayed. Plugins (see loadPlugins) are run through a
+	 SandboxedPlayer. */
+	static class Roster {
+		final String[] names;
+		final Constructor<?>[] makers;
+		final boolean[] sandboxed;
+
+		Roster(List<Class<?>> classes) {
+			names = new String[classes.size()];
+			makers = new Constructor<?>[classes.size()];
+			sandboxed = new boolean[classes.size()];
+			for (int i=0; i<names.length; i++) {
+				Class<?> c = classes.get(i);
+				sandboxed[i] = c.getClassLoader() != ThreePrisonersDilemma.class.getClassLoader();
+				String result = c.getName();
+				names[i] = result.substring(result.indexOf('$')+1);
+				try {
+					makers[i] = sandboxed[i] ? c.getConstructor() : c.getDeclaredConstructor(ThreePrisonersDilemma.class);
+				} catch (NoSuchMethodException e) {
+					throw new RuntimeException(names[i] + " is not a Player of ThreePrisonersDilemma", e);
+				}
+			}
+		}
+
+		int size() {
+			return names.length;
+		}
+
+		// Create a fresh copy of the player in the given slot.
+		Player make(ThreePrisonersDilemma owner, int which) {
+			if (sandboxed[which])
+				return owner.new SandboxedPlayer(makers[which]);
+			try {
+				return (Player) makers[which].newInstance(owner);
+			} catch (ReflectiveOperationException e) {
+				throw new RuntimeException("Could not create " + names[which], e);
+			}
+		}
+	}
+
+	// The players registered in makePlayer, followed by any loaded plugins.
+	List<Class<?>> fieldClasses() {
+		List<Class<?>> classes = new ArrayList<>();
+		for (int i=0; i<numPlayers; i++)
+			classes.add(makePlayer(i).getClass());
+		classes.addAll(plugins);
+		return classes;
+	}
+
+	Roster defaultRoster() {
+		return new Roster(fieldClasses());
+	}
+
+	// Parses a comma separated list of strategy class names, e.g.
+	// "testPlayer3,field". The word "field" stands for every player in makePlayer
+	// and every plugin.
+	Roster parseRoster(String spec) {
+		List<Class<?>> classes = new ArrayList<>();
+		for (String name : spec.split(",")) {
+			name = name.trim();
+			if (name.isEmpty())
+				continue;
+			if (name.equals("field")) {
+				classes.addAll(fieldClasses());
+				continue;
+			}
+			Class<?> plugin = null;
+			for (Class<?> c : plugins)
+				if (c.getName().equals(name))
+					plugin = c;
+			if (plugin != null) {
+				classes.add(plugin);
+				continue;
+			}
+			try {
+				Class<?> c = Class.forName("ThreePrisonersDilemma$" + name);
+				if (!Player.class.isAssignableFrom(c) || c == Player.class)
+					throw new IllegalArgumentException(name + " is not a strategy");
+				classes.add(c);
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException("Unknown strategy " + name);
+			}
+		}
+		if (classes.isEmpty())
+			throw new IllegalArgumentException("Empty roster: " + spec);
+		return new Roster(classes);
+	}
+
 	/* Finally, the remaining code actually runs the tournament. */
 
-	public static void main (String[] args) {
+	public static void main (String[] args) throws Exception {
+		// Options: -plugins <path> -budget <milliseconds per move> -alloc <MB per match>
+		int first = 0;
+		for (; first+1 < args.length && args[first].startsWith("-"); first += 2) {
+			switch (args[first]) {
+			case "-plugins": loadPlugins(args[first+1]); break;
+			case "-budget": pluginMoveBudget = Long.parseLong(args[first+1]); break;
+			case "-alloc": pluginAllocationLimit = Long.parseLong(args[first+1]) << 20; break;
+			default: throw new IllegalArgumentException("Unknown option " + args[first]);
+			}
+		}
+		args = Arrays.copyOfRange(args, first, args.length);
+		switch (args.length == 0 ? "" : args[0]) {
+		case "shards":
+			// shards <dir> <shards> <workers> <repeat> <seed> [roster]
+			runSharded(args);
+			return;
+		case "shard-worker":
+			runShardWorker(args);
+			return;
+		case "exact":
+			// exact [samples per sampled triple] [roster]
+			ThreePrisonersDilemma exact = new ThreePrisonersDilemma();
+			exact.printResults(exact.expectedTournament(exact.parseRoster(args.length > 2 ? args[2] : "field"),
+				args.length > 1 ? Integer.parseInt(args[1]) : 100), System.out);
+			return;
+		case "noisy":
+			// noisy <flip probability> <play|observe> [repeat] [roster]
+			ThreePrisonersDilemma noisy = new ThreePrisonersDilemma();
+			NoisyEngine engine = noisy.new NoisyEngine(Double.parseDouble(args[1]), args[2].equals("observe"));
+			noisy.printResults(noisy.playTournament(noisy.parseRoster(args.length > 4 ? args[4] : "field"),
+				args.length > 3 ? Integer.parseInt(args[3]) : 100, engine), System.out);
+			return;
+		case "events":
+			// events [repeat] [roster]
+			ThreePrisonersDilemma events = new ThreePrisonersDilemma();
+			events.printResults(events.playTournament(events.parseRoster(args.length > 2 ? args[2] : "field"),
+				args.length > 1 ? Integer.parseInt(args[1]) : 100, events::scoresOfEventMatch), System.out);
+			return;
+		case "compare":
+			// compare <variants> <samples> [opponents] [seed] [plain|antithetic] [threads]
+			ThreePrisonersDilemma compare = new ThreePrisonersDilemma();
+			compare.runComparison(compare.parseRoster(args[1]), compare.parseRoster(args.length > 3 ? args[3] : "field"),
+				Integer.parseInt(args[2]), args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime(),
+				args.length > 5 && args[5].equals("antithetic"),
+				args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "sweep":
+			// sweep <matrix file | random:<count>> [repeat] [roster] [seed] [threads]
+			ThreePrisonersDilemma sweep = new ThreePrisonersDilemma();
+			long sweepSeed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+			sweep.runSweep(sweep.parseRoster(args.length > 3 ? args[3] : "field"), payoffMatrices(args[1], sweepSeed),
+				args.length > 2 ? Integer.parseInt(args[2]) : 10, sweepSeed,
+				args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "format":
+			// format <swiss|single|double> [roster] [generated strategies] [seed] [k] [threads]
+			ThreePrisonersDilemma format = new ThreePrisonersDilemma();
+			format.runFormat(args[1], format.parseRoster(args.length > 2 ? args[2] : "field"),
+				args.length > 3 ? Integer.parseInt(args[3]) : 0, args.length > 4 ? Long.parseLong(args[4]) : 1,
+				args.length > 5 ? Integer.parseInt(args[5]) : 5,
+				args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "equilibria":
+			// equilibria [repeat] [roster] [starts] [seed] [threads]
+			ThreePrisonersDilemma equilibria = new ThreePrisonersDilemma();
+			equilibria.runEquilibria(equilibria.parseRoster(args.length > 2 ? args[2] : "field"),
+				args.length > 1 ? Integer.parseInt(args[1]) : 1, args.length > 3 ? Integer.parseInt(args[3]) : 20,
+				args.length > 4 ? Long.parseLong(args[4]) : 1,
+				args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "nplayer":
+			// nplayer <players per match> [repeat] [roster] [threads]
+			ThreePrisonersDilemma nplayer = new ThreePrisonersDilemma();
+			nplayer.printResults(nplayer.playNTournament(nplayer.parseRoster(args.length > 3 ? args[3] : "field"),
+				Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 1,
+				args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors()), System.out);
+			return;
+		case "spatial":
+			// spatial <width> <height> <generations> [roster] [seed] [threads]
+			ThreePrisonersDilemma spatial = new ThreePrisonersDilemma();
+			spatial.runSpatial(spatial.parseRoster(args.length > 4 ? args[4] : "field"),
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+				args.length > 5 ? Long.parseLong(args[5]) : 1,
+				args.length > 6 ? Integer.parseInt(args[6]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "evolve":
+			// evolve <k> <buckets> <generations> <population> [roster] [seed] [threads]
+			ThreePrisonersDilemma evolve = new ThreePrisonersDilemma();
+			evolve.runEvolution(evolve.parseRoster(args.length > 5 ? args[5] : "field"),
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+				args.length > 6 ? Long.parseLong(args[6]) : 1,
+				args.length > 7 ? Integer.parseInt(args[7]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "store":
+			// store <dir> [repeat] [roster] [seed]
+			runStored(args);
+			return;
+		case "query":
+			// query <dir> runs | rank <strategy> | vs <strategy> <opponent>
+			queryStore(args);
+			return;
+		case "trace":
+			// trace <dir> <repeat> <seed> [roster]
+			recordTrace(args);
+			return;
+		case "replay":
+			// replay <dir> [match]
+			replayTrace(args);
+			return;
+		case "rank":
+			// rank [repeat] [roster] [k]
+			runRanking(args);
+			return;
+		case "sampled":
+			// sampled <match budget> [roster] [seed] [threads]
+			ThreePrisonersDilemma sampled = new ThreePrisonersDilemma();
+			sampled.runSampled(sampled.parseRoster(args.length > 2 ? args[2] : "field"), Long.parseLong(args[1]),
+				args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime(),
+				args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors());
+			return;
+		case "scheduled":
+			// scheduled [repeat] [roster] [seed] [threads]
+			ThreePrisonersDilemma scheduled = new ThreePrisonersDilemma();
+			scheduled.printResults(scheduled.playScheduled(scheduled.parseRoster(args.length > 2 ? args[2] : "field"),
+				args.length > 1 ? Integer.parseInt(args[1]) : 100, args.length > 3 ? Long.parseLong(args[3]) : System.nanoTime(),
+				args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors()), System.out);
+			return;
+		case "difftest":
+			// difftest [cases] [seed] [roster]
+			ThreePrisonersDilemma difftest = new ThreePrisonersDilemma();
+			if (!difftest.runDifferentialTest(difftest.parseRoster(args.length > 3 ? args[3] : "field"),
+					args.length > 1 ? Integer.parseInt(args[1]) : 1000, args.length > 2 ? Long.parseLong(args[2]) : 1))
+				System.exit(1);
+			return;
+		case "classify":
+			// classify [rounds] [trials] [seed]
+			if (!checkClassifier(args.length > 1 ? Integer.parseInt(args[1]) : MAX_ROUNDS,
+					args.length > 2 ? Integer.parseInt(args[2]) : 100, args.length > 3 ? Long.parseLong(args[3]) : 1))
+				System.exit(1);
+			return;
+		case "bench":
+			// bench [repeat]
+			new ThreePrisonersDilemma().runBenchmarks(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+			return;
+		case "batch":
+			// batch <manifest> [threads]
+			runBatch(args[1], args.length > 2 ? Integer.parseInt(args[2])
+				: Runtime.getRuntime().availableProcessors());
+			return;
+		}
 		ThreePrisonersDilemma instance = new ThreePrisonersDilemma();
 		instance.runTournament();
 	}
 
 	boolean verbose = true; // set verbose = false if you get too much text output
 
+	// The payoffs as the strategies made by this instance see them; a strategy
+	// that reads the payoffs should read these. Matches are always scored with
+	// payoff. The sweep's probe gives its own instances other matrices.
+	int[][][] visiblePayoff = payoff;
+
+	// The accumulated results of one tournament.
+	static class TournamentResult {
+		String[] names;
+		float[] totalScore;
+		int[][] lossRecored;
+		int repeat;
+
+		long seed; // of a seeded tournament (see playMatches)
+		long time; // when it was stored (see ResultStore)
+		int[][][] payoff = ThreePrisonersDilemma.payoff;
+
+		// Kept only after keepDetails(): headToHead[i][j] is the sum of i's scores
+		// in its meetings[i][j] matches with j as an opponent, and the match log
+		// holds (i, j, k, rounds) and the three scores of every match.
+		float[][] headToHead;
+		int[][] meetings;
+		int matches = 0;
+		int[] matchPlayers;
+		float[] matchScores;
+
+		TournamentResult(String[] names, int repeat) {
+			this.names = names;
+			this.repeat = repeat;
+			totalScore = new float[names.length];
+			lossRecored = new int[names.length][3];
+		}
+
+		TournamentResult keepDetails() {
+			headToHead = new float[names.length][names.length];
+			meetings = new int[names.length][names.length];
+			return keepMatchLog();
+		}
+
+		// Keeps only the match log, for rosters too large for head-to-head tables.
+		TournamentResult keepMatchLog() {
+			matchPlayers = new int[4 * 1024];
+			matchScores = new float[3 * 1024];
+			return this;
+		}
+
+		// Adds in the totals and win/loss record of a part of the same tournament.
+		void add(TournamentResult part) {
+			for (int i=0; i<names.length; i++) {
+				totalScore[i] += part.totalScore[i];
+				for (int r=0; r<3; r++)
+					lossRecored[i][r] += part.lossRecored[i][r];
+			}
+		}
+
+		// Adds the scores of one match between players i, j and k.
+		void record(int i, int j, int k, int rounds, float[] matchResults) {
+			totalScore[i] = totalScore[i] + matchResults[0];
+			totalScore[j] = totalScore[j] + matchResults[1];
+			totalScore[k] = totalScore[k] + matchResults[2];
+			if (headToHead != null) {
+				int[] players = {i, j, k};
+				for (int p=0; p<3; p++) {
+					int q = players[(p+1) % 3], r = players[(p+2) % 3];
+					headToHead[players[p]][q] += matchResults[p];
+					headToHead[players[p]][r] += matchResults[p];
+					meetings[players[p]][q]++;
+					meetings[players[p]][r]++;
+				}
+			}
+			if (matchPlayers != null) {
+				if (4 * matches == matchPlayers.length) {
+					matchPlayers = Arrays.copyOf(matchPlayers, 2 * matchPlayers.length);
+					matchScores = Arrays.copyOf(matchScores, 2 * matchScores.length);
+				}
+				matchPlayers[4*matches] = i;
+				matchPlayers[4*matches+1] = j;
+				matchPlayers[4*matches+2] = k;
+				matchPlayers[4*matches+3] = rounds;
+				System.arraycopy(matchResults, 0, matchScores, 3*matches, 3);
+				matches++;
+			}
+			if(i == 0)
+			{
+				if(matchResults[0] < matchResults[1])
+					lossRecored[j][0]++;
+				if(matchResults[0] < matchResults[2])
+					lossRecored[k][0]++;
+				if(matchResults[0] == matchResults[1])
+					lossRecored[j][2]++;
+				if(matchResults[0] == matchResults[2])
+					lossRecored[k][2]++;
+				lossRecored[j][1]++;
+				lossRecored[k][1]++;
+			}
+			else if(j == 0)
+			{
+				if(matchResults[1] < matchResults[0])
+					lossRecored[i][0]++;
+				if(matchResults[1] < matchResults[2])
+					lossRecored[k][0]++;
+				if(matchResults[1] == matchResults[0])
+					lossRecored[i][2]++;
+				if(matchResults[1] == matchResults[2])
+					lossRecored[k][2]++;
+				lossRecored[i][1]++;
+				lossRecored[k][1]++;
+			}
+			else if(k == 0)
+			{
+				if(matchResults[2] < matchResults[1])
+					lossRecored[j][0]++;
+				if(matchResults[2] < matchResults[0])
+					lossRecored[i][0]++;
+				if(matchResults[2] == matchResults[1])
+					lossRecored[j][2]++;
+				if(matchResults[2] == matchResults[0])
+					lossRecored[i][2]++;
+				lossRecored[j][1]++;
+				lossRecored[i][1]++;
+			}
+		}
+	}
+
 	void runTournament() {
-		float[] totalScore = new float[numPlayers];
-		int[][] lossRecored = new int[numPlayers][3];
+		printResults(playTournament(defaultRoster(), 100), System.out);
+	}
+
+	// Plays one match and returns the average score of each player.
+	interface MatchEngine {
+		float[] play(Player A, Player B, Player C, int rounds);
+	}
+
+	TournamentResult playTournament(Roster roster, int repeat) {
+		return playTournament(roster, repeat, this::scoresOfMatch);
+	}
+
+	TournamentResult playTournament(Roster roster, int repeat, MatchEngine engine) {
+		int numPlayers = roster.size();
+		TournamentResult result = new TournamentResult(roster.names, repeat);
 		// This loop plays each triple of players against each other.
 		// Note that we include duplicates: two copies of your strategy will play once
 		// against each other strategy, and three copies of your strategy will play once.
-		int repeat = 100;
 		for(int x = 0; x < repeat; x++)
 		{
 			for (int i=0; i<numPlayers; i++) for (int j=i; j<numPlayers; j++) for (int k=j; k<numPlayers; k++) {
 				counter++;
-				Player A = makePlayer(i); // Create a fresh copy of each player
-				Player B = makePlayer(j);
-				Player C = makePlayer(k);
-				int rounds = 90 + (int)Math.rint(20 * Math.random()); // Between 90 and 110 rounds
-				float[] matchResults = scoresOfMatch(A, B, C, rounds); // Run match	
-				totalScore[i] = totalScore[i] + matchResults[0];
-				totalScore[j] = totalScore[j] + matchResults[1];
-				totalScore[k] = totalScore[k] + matchResults[2];
-				if(i == 0)
-				{
-					if(matchResults[0] < matchResults[1])
-						lossRecored[j][0]++;
-					if(matchResults[0] < matchResults[2])
-						lossRecored[k][0]++;
-					if(matchResults[0] == matchResults[1])
-						lossRecored[j][2]++;
-					if(matchResults[0] == matchResults[2])
-						lossRecored[k][2]++;
-					lossRecored[j][1]++;
-					lossRecored[k][1]++;
-				}
-				else if(j == 0)
-				{
-					if(matchResults[1] < matchResults[0])
-						lossRecored[i][0]++;
-					if(matchResults[1] < matchResults[2])
-						lossRecored[k][0]++;
-					if(matchResults[1] == matchResults[0])
-						lossRecored[i][2]++;
-					if(matchResults[1] == matchResults[2])
-						lossRecored[k][2]++;
-					lossRecored[i][1]++;
-					lossRecored[k][1]++;
-				}
-				else if(k == 0)
-				{
-					if(matchResults[2] < matchResults[1])
-						lossRecored[j][0]++;
-					if(matchResults[2] < matchResults[0])
-						lossRecored[i][0]++;
-					if(matchResults[2] == matchResults[1])
-						lossRecored[j][2]++;
-					if(matchResults[2] == matchResults[0])
-						lossRecored[i][2]++;
-					lossRecored[j][1]++;
-					lossRecored[i][1]++;
-				}
+				Player A = roster.make(this, i); // Create a fresh copy of each player
+				Player B = roster.make(this, j);
+				Player C = roster.make(this, k);
+				int rounds = drawRounds();
+				float[] matchResults = engine.play(A, B, C, rounds); // Run match
+				result.record(i, j, k, rounds, matchResults);
 				// if (verbose)
 				// 	System.out.println(A.name() + " scored " + matchResults[0] +
 				// 			" points, " + B.name() + " scored " + matchResults[1] +
 				// 			" points, and " + C.name() + " scored " + matchResults[2] + " points.");
 				
-				if(counter%10000==0)
+				if(verbose && counter%10000==0)
 					System.out.println(counter);
 			}
 		}
 
-		int[] sortedOrder = new int[numPlayers];
-		// This loop sorts the players by their score.
-		for (int i=0; i<numPlayers; i++) {
-			int j=i-1;
-			for (; j>=0; j--) {
-				if (totalScore[i] > totalScore[sortedOrder[j]])
-					sortedOrder[j+1] = sortedOrder[j];
-				else break;
+		return result;
+	}
+
+	/* Ranking. Players are ordered by score, best first, with ties going to the
+	 lower roster index so that the order never depends on anything but the
+	 scores. sortedOrder is a merge sort of player indices, O(N log N) with no
+	 boxing, so it copes with generated rosters of many thousands of players;
+	 topK keeps only the best k in a heap of indices, O(N log k), for when the
+	 full order is not needed. */
+
+	// Whether player a ranks above player b.
+	static boolean ranksAbove(float[] totalScore, int a, int b) {
+		return totalScore[a] > totalScore[b] || (totalScore[a] == totalScore[b] && a < b);
+	}
+
+	// The players in order of score, best first.
+	static int[] sortedOrder(float[] totalScore) {
+		int numPlayers = totalScore.length;
+		int[] order = new int[numPlayers], buffer = new int[numPlayers];
+		for (int i=0; i<numPlayers; i++)
+			order[i] = i;
+		for (int width=1; width<numPlayers; width*=2) {
+			for (int from=0; from<numPlayers; from+=2*width) {
+				int middle = Math.min(from + width, numPlayers), to = Math.min(from + 2*width, numPlayers);
+				int a = from, b = middle, out = from;
+				while (a < middle && b < to)
+					buffer[out++] = ranksAbove(totalScore, order[b], order[a]) ? order[b++] : order[a++];
+				while (a < middle)
+					buffer[out++] = order[a++];
+				while (b < to)
+					buffer[out++] = order[b++];
+			}
+			int[] swap = order; order = buffer; buffer = swap;
+		}
+		return order;
+	}
+
+	// The best k players, best first.
+	static int[] topK(float[] totalScore, int k) {
+		k = Math.min(k, totalScore.length);
+		int[] heap = new int[k]; // the worst of the best k so far at the root
+		int size = 0;
+		for (int i=0; i<totalScore.length; i++) {
+			if (size < k) {
+				int at = size++;
+				heap[at] = i;
+				while (at > 0 && ranksAbove(totalScore, heap[(at-1)/2], heap[at])) {
+					int parent = (at-1)/2, swap = heap[parent];
+					heap[parent] = heap[at]; heap[at] = swap;
+					at = parent;
+				}
+			} else if (k > 0 && ranksAbove(totalScore, i, heap[0])) {
+				heap[0] = i;
+				for (int at=0;;) {
+					int worst = at, left = 2*at+1, right = left+1;
+					if (left < k && ranksAbove(totalScore, heap[worst], heap[left]))
+						worst = left;
+					if (right < k && ranksAbove(totalScore, heap[worst], heap[right]))
+						worst = right;
+					if (worst == at)
+						break;
+					int swap = heap[worst];
+					heap[worst] = heap[at]; heap[at] = swap;
+					at = worst;
+				}
+			}
+		}
+		int[] result = new int[k];
+		for (int r=k-1; r>=0; r--) { // pop the worst each time
+			result[r] = heap[0];
+			heap[0] = heap[r];
+			for (int at=0;;) {
+				int worst = at, left = 2*at+1, right = left+1;
+				if (left < r && ranksAbove(totalScore, heap[worst], heap[left]))
+					worst = left;
+				if (right < r && ranksAbove(totalScore, heap[worst], heap[right]))
+					worst = right;
+				if (worst == at)
+					break;
+				int swap = heap[worst];
+				heap[worst] = heap[at]; heap[at] = swap;
+				at = worst;
+			}
+		}
+		return result;
+	}
+
+	/* Bradley-Terry ratings from a tournament's match log. Within each match
+	 every pair of seats counts as a game between the two players, won by the
+	 higher score (half each on a tie). Strengths are fitted with the usual
+	 minorisation-maximisation iteration over the pairs that actually met, kept
+	 in flat arrays, and reported on the Elo scale with a mean of 1500. Each
+	 player is also given two virtual games against an average player (strength
+	 1), one won and one lost, so a player that never wins or never loses still
+	 gets a finite rating. */
+	static double[] bradleyTerry(TournamentResult result) {
+		int n = result.names.length;
+		Map<Long, double[]> games = new HashMap<>();
+		for (int m=0; m<result.matches; m++) {
+			for (int p=0; p<3; p++) for (int q=p+1; q<3; q++) {
+				int a = result.matchPlayers[4*m+p], b = result.matchPlayers[4*m+q];
+				if (a == b)
+					continue;
+				float sa = result.matchScores[3*m+p], sb = result.matchScores[3*m+q];
+				boolean swap = a > b;
+				double[] wins = games.computeIfAbsent(swap ? (long)b * n + a : (long)a * n + b, x -> new double[2]);
+				double winA = sa > sb ? 1 : sa == sb ? 0.5 : 0;
+				wins[swap ? 1 : 0] += winA;
+				wins[swap ? 0 : 1] += 1 - winA;
+			}
+		}
+		int pairs = games.size();
+		int[] first = new int[pairs], second = new int[pairs];
+		double[] played = new double[pairs];
+		double[] won = new double[n];
+		int g = 0;
+		for (Map.Entry<Long, double[]> e : games.entrySet()) {
+			first[g] = (int)(e.getKey() / n);
+			second[g] = (int)(e.getKey() % n);
+			played[g] = e.getValue()[0] + e.getValue()[1];
+			won[first[g]] += e.getValue()[0];
+			won[second[g]] += e.getValue()[1];
+			g++;
+		}
+		double[] strength = new double[n], denominator = new double[n];
+		Arrays.fill(strength, 1);
+		for (int iteration=0; iteration<1000; iteration++) {
+			for (int i=0; i<n; i++)
+				denominator[i] = 2 / (strength[i] + 1); // the two virtual games against strength 1
+			for (g=0; g<pairs; g++) {
+				double d = played[g] / (strength[first[g]] + strength[second[g]]);
+				denominator[first[g]] += d;
+				denominator[second[g]] += d;
+			}
+			double change = 0, logSum = 0;
+			for (int i=0; i<n; i++) {
+				double next = (won[i] + 1) / denominator[i]; // plus the virtual win
+				change = Math.max(change, Math.abs(Math.log(next / strength[i])));
+				strength[i] = next;
+				logSum += Math.log(next);
 			}
-			sortedOrder[j+1] = i;
+			double scale = Math.exp(-logSum / n);
+			for (int i=0; i<n; i++)
+				strength[i] *= scale;
+			if (change < 1e-9)
+				break;
 		}
+		double[] rating = new double[n];
+		for (int i=0; i<n; i++)
+			rating[i] = 1500 + 400 * Math.log10(strength[i]);
+		return rating;
+	}
+
+	// rank [repeat] [roster] [k]
+	static void runRanking(String[] args) {
+		ThreePrisonersDilemma instance = new ThreePrisonersDilemma();
+		instance.verbose = false;
+		int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		Roster roster = instance.parseRoster(args.length > 2 ? args[2] : "field");
+		int k = args.length > 3 ? Integer.parseInt(args[3]) : roster.size();
+		TournamentResult result = new TournamentResult(roster.names, repeat).keepMatchLog();
+		instance.playMatches(roster, System.nanoTime(), 0, (long)repeat * triples(roster.size()).length, result);
+		double[] rating = bradleyTerry(result);
+		int[] best = topK(result.totalScore, k);
+		System.out.println("Top " + best.length + " of " + roster.size() + " by score, with Bradley-Terry ratings");
+		for (int r=0; r<best.length; r++)
+			System.out.println((r+1) + ". " + roster.names[best[r]] + ": " + result.totalScore[best[r]] / repeat
+				+ " points, rating " + Math.round(rating[best[r]]));
+	}
+
+	void printResults(TournamentResult result, PrintStream out) {
+		int numPlayers = result.names.length;
+		float[] totalScore = result.totalScore;
+		int[][] lossRecored = result.lossRecored;
+		int[] sortedOrder = sortedOrder(totalScore);
 
 		// Finally, print out the sorted results.
-		if (verbose) System.out.println();
-		System.out.println("Tournament Results");
+		if (verbose) out.println();
+		out.println("Tournament Results");
 		for (int i=0; i<numPlayers; i++)
-			System.out.println((i+1)+". "+makePlayer(sortedOrder[i]).name() + ": "
-				+ totalScore[sortedOrder[i]]/repeat + " points.");
-		System.out.println("\n");
+			out.println((i+1)+". "+result.names[sortedOrder[i]] + ": "
+				+ totalScore[sortedOrder[i]]/result.repeat + " points.");
+		out.println("\n");
+		if (lossRecored == null)
+			return; // no individual matches were played
 		for(int i = 0; i< numPlayers; i++)
-			System.out.println("Player " + makePlayer(i).name()+" || Wins: "+ (lossRecored[i][1] - (lossRecored[i][2]+lossRecored[i][0])) + " | Losses: " + lossRecored[i][0] + " | Ties: " +  lossRecored[i][2]+ " | Total Matches: " +  lossRecored[i][1]+"||");
-	} // end of runTournament()
+			out.println("Player " + result.names[i]+" || Wins: "+ (lossRecored[i][1] - (lossRecored[i][2]+lossRecored[i][0])) + " | Losses: " + lossRecored[i][0] + " | Ties: " +  lossRecored[i][2]+ " | Total Matches: " +  lossRecored[i][1]+"||");
+	} // end of printResults()
+
+	/* Exact expectations. Many strategies decide each move from the round number
+	 and the previous round's actions alone, some with a coin flip. A match
+	 between three such strategies is a Markov chain over the eight joint
+	 actions, so instead of averaging many simulated matches we can propagate
+	 the distribution over joint actions round by round and add up the expected
+	 payoffs. One pass up to 110 rounds gives the expected score for every match
+	 length, which is then averaged over the 90 to 110 round lengths that
+	 drawRounds produces. A strategy that flips a coin once at the start of the
+	 match, like FreakyPlayer, is an equal mixture of such models.
+
+	 Triples containing a strategy with longer memory (anything without a model
+	 in markovModels) fall back to averaging simulated matches. */
+
+	interface MarkovModel {
+		// Probability of defecting in round n, given the previous round's actions
+		// (ignored when n == 0).
+		double defect(int n, int my, int opp1, int opp2);
+	}
+
+	// The equally weighted models of a strategy, or null if it has none.
+	static MarkovModel[] markovModels(Class<?> c) {
+		if (c == NicePlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> 0};
+		if (c == NastyPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> 1};
+		if (c == RandomPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> 0.5};
+		if (c == FreakyPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> 0, (n, my, o1, o2) -> 1};
+		if (c == T4TPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n == 0 ? 0 : 0.5*o1 + 0.5*o2};
+		if (c == SusT4TPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n == 0 ? 1 : 0.5*o1 + 0.5*o2};
+		if (c == CopyCatPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n == 0 ? 0 : Math.max(o1, o2)};
+		if (c == ViswenPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n == 0 ? 0 : n >= 90 || o1 + o2 > 1 ? 1 : 0};
+		if (c == RetardPlayer.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n == 0 ? 1 : o1 > 0 && o2 > 0 ? 0 : 1};
+		if (c == PatternPlayer1.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n != 0 && n%4 == 0 ? 1 : 0};
+		if (c == PatternPlayer2.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n != 0 && n%6 == 0 ? 1 : 0};
+		if (c == PatternPlayer3.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n != 0 && n%9 == 0 ? 1 : 0};
+		if (c == PatternPlayer4.class)
+			return new MarkovModel[] {(n, my, o1, o2) -> n != 0 && n%12 == 0 ? 1 : 0};
+		return null;
+	}
+
+	static final int MIN_ROUNDS = 90, MAX_ROUNDS = 110;
+
+	// Probability that drawRounds returns each number of rounds.
+	static double roundsProbability(int rounds) {
+		if (rounds < MIN_ROUNDS || rounds > MAX_ROUNDS)
+			return 0;
+		if (rounds == MIN_ROUNDS || rounds == MAX_ROUNDS)
+			return 1.0/40;
+		return 1.0/20;
+	}
+
+	// Expected scores of a match between three modelled strategies, averaged
+	// over the match lengths.
+	static double[] expectedScores(MarkovModel a, MarkovModel b, MarkovModel c) {
+		double[] state = new double[8]; // joint action (A,B,C) of the last round, as A*4 + B*2 + C
+		double[] next = new double[8];
+		double[] total = new double[3];
+		double[] expected = new double[3];
+		for (int n=0; n<MAX_ROUNDS; n++) {
+			Arrays.fill(next, 0);
+			for (int s=0; s<8; s++) {
+				double p = n == 0 ? (s == 0 ? 1 : 0) : state[s];
+				if (p == 0)
+					continue;
+				int sa = s >> 2, sb = (s >> 1) & 1, sc = s & 1;
+				double da = a.defect(n, sa, sb, sc);
+				double db = b.defect(n, sb, sc, sa);
+				double dc = c.defect(n, sc, sa, sb);
+				for (int t=0; t<8; t++) {
+					int pa = t >> 2, pb = (t >> 1) & 1, pc = t & 1;
+					double q = p * (pa == 1 ? da : 1-da) * (pb == 1 ? db : 1-db) * (pc == 1 ? dc : 1-dc);
+					if (q == 0)
+						continue;
+					next[t] += q;
+					total[0] += q * payoff[pa][pb][pc];
+					total[1] += q * payoff[pb][pc][pa];
+					total[2] += q * payoff[pc][pa][pb];
+				}
+			}
+			double[] swap = state; state = next; next = swap;
+			double weight = roundsProbability(n+1) / (n+1);
+			for (int p=0; p<3; p++)
+				expected[p] += weight * total[p];
+		}
+		return expected;
+	}
+
+	/* The expected result of one repeat of the tournament: the exact expectation
+	 where all three strategies of a triple are modelled and the average of
+	 `samples` simulated matches otherwise. */
+	TournamentResult expectedTournament(Roster roster, int samples) {
+		int numPlayers = roster.size();
+		MarkovModel[][] models = new MarkovModel[numPlayers][];
+		for (int i=0; i<numPlayers; i++)
+			models[i] = markovModels(roster.makers[i].getDeclaringClass());
+		double[] expected = new double[numPlayers];
+		int exactTriples = 0, sampledTriples = 0;
+		for (int[] t : triples(numPlayers)) {
+			double[] scores = new double[3];
+			MarkovModel[] a = models[t[0]], b = models[t[1]], c = models[t[2]];
+			if (a != null && b != null && c != null) {
+				exactTriples++;
+				double weight = 1.0 / (a.length * b.length * c.length);
+				for (MarkovModel ma : a) for (MarkovModel mb : b) for (MarkovModel mc : c) {
+					double[] e = expectedScores(ma, mb, mc);
+					for (int p=0; p<3; p++)
+						scores[p] += weight * e[p];
+				}
+			} else {
+				sampledTriples++;
+				for (int x=0; x<samples; x++) {
+					float[] matchResults = scoresOfMatch(roster.make(this, t[0]), roster.make(this, t[1]),
+						roster.make(this, t[2]), drawRounds());
+					for (int p=0; p<3; p++)
+						scores[p] += matchResults[p] / (double)samples;
+				}
+			}
+			for (int p=0; p<3; p++)
+				expected[t[p]] += scores[p];
+		}
+		if (verbose)
+			System.out.println(exactTriples + " triples computed exactly, " + sampledTriples + " sampled "
+				+ samples + " times each");
+		TournamentResult result = new TournamentResult(roster.names, 1);
+		for (int i=0; i<numPlayers; i++)
+			result.totalScore[i] = (float)expected[i];
+		result.lossRecored = null;
+		return result;
+	}
+
+	// Runs task over the range [0, n), split into contiguous pieces across threads.
+	interface RangeTask {
+		void run(int from, int to) throws Exception;
+	}
+
+	static void parallelFor(int n, int threads, RangeTask task) throws InterruptedException, ExecutionException {
+		int pieces = Math.max(1, Math.min(n, threads * 4));
+		if (threads <= 1 || pieces == 1) {
+			try {
+				task.run(0, n);
+			} catch (Exception e) {
+				throw new ExecutionException(e);
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> parts = new ArrayList<>();
+			for (int p=0; p<pieces; p++) {
+				final int from = (int)((long)n * p / pieces), to = (int)((long)n * (p+1) / pieces);
+				parts.add(pool.submit(() -> { task.run(from, to); return null; }));
+			}
+			for (Future<?> part : parts)
+				part.get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/* Spatial tournaments. Strategies sit on the nodes of a width x height grid
+	 that wraps around at the edges. Every node v anchors one game, played by v
+	 and its east and south neighbours, so each node takes part in three games:
+	 its own, as the east player of its west neighbour's game and as the south
+	 player of its north neighbour's game. After each generation every node
+	 imitates whichever of itself and its four neighbours scored best (keeping
+	 its own strategy on a tie).
+
+	 The grid is kept in flat primitive arrays. The payoffs of the game anchored
+	 at v are stored in gameSelf[v], gameEast[v] and gameSouth[v], so a node's
+	 score is gameSelf[v] + gameEast[west(v)] + gameSouth[north(v)]. When a node
+	 changes strategy only the three games it plays in are replayed; everything
+	 else keeps its payoffs. Games, scores and imitation are each computed over
+	 stripes of rows in parallel, with every stripe writing only its own
+	 nodes. Each game draws its random numbers from a generator seeded with the
+	 run's seed, the generation and the node, so a run is the same whatever the
+	 number of threads. */
+	void runSpatial(Roster roster, int width, int height, int generations, long seed, int threads)
+			throws InterruptedException, ExecutionException {
+		int nodes = width * height;
+		int[] strategy = new int[nodes];
+		int[] next = new int[nodes];
+		float[] gameSelf = new float[nodes], gameEast = new float[nodes], gameSouth = new float[nodes];
+		float[] score = new float[nodes];
+		boolean[] dirty = new boolean[nodes];
+		Random placement = new Random(seed);
+		for (int v=0; v<nodes; v++)
+			strategy[v] = placement.nextInt(roster.size());
+		Arrays.fill(dirty, true);
+
+		for (int g=0; g<=generations; g++) {
+			int[] replayed = new int[1];
+			final long generation = g;
+			parallelFor(height, threads, (fromRow, toRow) -> {
+				int count = 0;
+				Random previous = rng.get();
+				try {
+					for (int v = fromRow * width; v < toRow * width; v++) {
+						if (!dirty[v])
+							continue;
+						int x = v % width, y = v / width;
+						int east = y * width + (x+1) % width, south = ((y+1) % height) * width + x;
+						rng.set(new Random(matchSeed(seed, generation * nodes + v)));
+						float[] matchResults = scoresOfMatch(roster.make(this, strategy[v]),
+							roster.make(this, strategy[east]), roster.make(this, strategy[south]), drawRounds());
+						gameSelf[v] = matchResults[0];
+						gameEast[v] = matchResults[1];
+						gameSouth[v] = matchResults[2];
+						dirty[v] = false;
+						count++;
+					}
+				} finally {
+					rng.set(previous);
+				}
+				synchronized (replayed) {
+					replayed[0] += count;
+				}
+			});
+			parallelFor(height, threads, (fromRow, toRow) -> {
+				for (int v = fromRow * width; v < toRow * width; v++) {
+					int x = v % width, y = v / width;
+					int west = y * width + (x + width - 1) % width, north = ((y + height - 1) % height) * width + x;
+					score[v] = gameSelf[v] + gameEast[west] + gameSouth[north];
+				}
+			});
+
+			int[] counts = new int[roster.size()];
+			for (int v=0; v<nodes; v++)
+				counts[strategy[v]]++;
+			StringBuilder line = new StringBuilder("Generation " + g + ": " + replayed[0] + " games played |");
+			for (int i=0; i<counts.length; i++)
+				if (counts[i] > 0)
+					line.append(" ").append(roster.names[i]).append(" ").append(counts[i]);
+			System.out.println(line);
+			if (g == generations)
+				break;
+
+			parallelFor(height, threads, (fromRow, toRow) -> {
+				for (int v = fromRow * width; v < toRow * width; v++) {
+					int x = v % width, y = v / width;
+					int best = v;
+					int[] neighbours = {y * width + (x+1) % width, y * width + (x + width - 1) % width,
+						((y+1) % height) * width + x, ((y + height - 1) % height) * width + x};
+					for (int u : neighbours)
+						if (score[u] > score[best])
+							best = u;
+					next[v] = strategy[best];
+				}
+			});
+			int changed = 0;
+			for (int v=0; v<nodes; v++) {
+				if (next[v] == strategy[v])
+					continue;
+				changed++;
+				strategy[v] = next[v];
+				int x = v % width, y = v / width;
+				dirty[v] = true;
+				dirty[y * width + (x + width - 1) % width] = true; // v is the east player of its west neighbour
+				dirty[((y + height - 1) % height) * width + x] = true; // and the south player of its north neighbour
+			}
+			if (changed == 0) {
+				System.out.println("Stable after " + (g+1) + " generations");
+				break;
+			}
+		}
+	}
+
+	/* Strategy search. A lookup-table strategy looks at the last k rounds, each
+	 a joint action (mine, opponent 1, opponent 2) of 3 bits, and at which of
+	 `buckets` equal slices of a 110 round match the current round falls in.
+	 Its genome holds one action for each of the buckets * 8^k combinations,
+	 followed by k opening moves for the rounds before there are k to look at.
+
+	 runEvolution evolves a population of such genomes. A genome's fitness is
+	 its average score, as player A of scoresOfMatch, over `FITNESS_REPEATS`
+	 matches against every pair of the roster. Each generation is evaluated as
+	 one parallel batch, each genome with a generator seeded from the run's
+	 seed, the generation and its place in the population, so a run is the
+	 same whatever the number of threads.
+
+	 Fitness is kept per genome as the mean of its evaluations. Each distinct
+	 genome of a generation is evaluated once, and a genome that survives (the
+	 elite) is evaluated again in later generations until it has
+	 FITNESS_EVALUATIONS evaluations, so a lucky first draw does not stay frozen
+	 into its fitness. Only the genomes of the live population and the best so
+	 far are kept. The best genome is printed as the source of a Player class
+	 that can be pasted into this file. */
+
+	static final int FITNESS_REPEATS = 2, FITNESS_EVALUATIONS = 4;
+
+	class GenomePlayer extends Player {
+		final byte[] genome;
+		final int k, buckets;
+
+		GenomePlayer(byte[] genome, int k, int buckets) {
+			this.genome = genome;
+			this.k = k;
+			this.buckets = buckets;
+		}
+
+		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+			int states = 1 << (3*k);
+			if (n < k)
+				return genome[buckets * states + n];
+			int state = 0;
+			for (int r = n-k; r < n; r++)
+				state = state * 8 + myHistory[r] * 4 + oppHistory1[r] * 2 + oppHistory2[r];
+			int bucket = Math.min(buckets - 1, n * buckets / MAX_ROUNDS);
+			return genome[bucket * states + state];
+		}
+	}
+
+	double fitness(byte[] genome, int k, int buckets, Roster roster) {
+		double total = 0;
+		int matches = 0;
+		for (int x=0; x<FITNESS_REPEATS; x++)
+			for (int j=0; j<roster.size(); j++) for (int l=j; l<roster.size(); l++) {
+				total += scoresOfMatch(new GenomePlayer(genome, k, buckets),
+					roster.make(this, j), roster.make(this, l), drawRounds())[0];
+				matches++;
+			}
+		return total / matches;
+	}
+
+	void runEvolution(Roster roster, int k, int buckets, int generations, int size, long seed, int threads)
+			throws InterruptedException, ExecutionException {
+		int length = buckets * (1 << (3*k)) + k;
+		Random random = new Random(seed);
+		byte[][] population = new byte[size][length];
+		for (byte[] genome : population)
+			for (int g=0; g<length; g++)
+				genome[g] = (byte)random.nextInt(2);
+		Map<String, double[]> means = new HashMap<>(); // genome -> {sum, evaluations}
+		long evaluations = 0;
+		double[] fitness = new double[size];
+		byte[] best = null;
+		String bestKey = null;
+		double bestFitness = Double.NEGATIVE_INFINITY;
+
+		for (int gen=0; gen<=generations; gen++) {
+			// The first place of each distinct genome that still needs evaluating.
+			final byte[][] current = population;
+			final long generation = gen;
+			Map<String, Integer> distinct = new LinkedHashMap<>();
+			for (int i=0; i<size; i++)
+				distinct.putIfAbsent(Arrays.toString(current[i]), i);
+			List<Integer> due = new ArrayList<>();
+			for (Map.Entry<String, Integer> e : distinct.entrySet()) {
+				double[] mean = means.get(e.getKey());
+				if (mean == null || mean[1] < FITNESS_EVALUATIONS)
+					due.add(e.getValue());
+			}
+			double[] evaluated = new double[due.size()];
+			parallelFor(due.size(), threads, (from, to) -> {
+				Random previous = rng.get();
+				try {
+					for (int d=from; d<to; d++) {
+						int i = due.get(d);
+						rng.set(new Random(matchSeed(seed, generation * size + i)));
+						evaluated[d] = fitness(current[i], k, buckets, roster);
+					}
+				} finally {
+					rng.set(previous);
+				}
+			});
+			for (int d=0; d<due.size(); d++)
+				means.merge(Arrays.toString(current[due.get(d)]), new double[] {evaluated[d], 1},
+					(a, b) -> new double[] {a[0] + b[0], a[1] + b[1]});
+			evaluations += due.size();
+			// The best so far is judged on its current mean, which more
+			// evaluations may have pulled down.
+			if (bestKey != null) {
+				double[] e = means.get(bestKey);
+				bestFitness = e[0] / e[1];
+			}
+			double sum = 0;
+			for (int i=0; i<size; i++) {
+				String key = Arrays.toString(population[i]);
+				double[] e = means.get(key);
+				fitness[i] = e[0] / e[1];
+				sum += fitness[i];
+				if (fitness[i] > bestFitness) {
+					bestFitness = fitness[i];
+					bestKey = key;
+					best = population[i].clone();
+				}
+			}
+			System.out.println("Generation " + gen + ": best " + (float)bestFitness + ", mean " + (float)(sum / size)
+				+ ", " + evaluations + " evaluations");
+			Set<String> kept = new HashSet<>(distinct.keySet());
+			kept.add(bestKey);
+			means.keySet().retainAll(kept);
+			if (gen == generations)
+				break;
+
+			// The next generation: the best two survive unchanged and the rest are
+			// uniform crossovers of tournament-selected parents, then mutated.
+			Integer[] order = new Integer[size];
+			for (int i=0; i<size; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Double.compare(fitness[b], fitness[a]));
+			byte[][] children = new byte[size][];
+			for (int i=0; i<size; i++) {
+				if (i < Math.min(2, size)) {
+					children[i] = population[order[i]];
+					continue;
+				}
+				byte[] mother = population[select(fitness, random)], father = population[select(fitness, random)];
+				byte[] child = new byte[length];
+				for (int g=0; g<length; g++) {
+					child[g] = random.nextBoolean() ? mother[g] : father[g];
+					if (random.nextInt(length) == 0)
+						child[g] ^= 1;
+				}
+				children[i] = child;
+			}
+			population = children;
+		}
+		System.out.println();
+		System.out.println(exportGenome("Evolved_Player", best, k, buckets));
+	}
+
+	// Tournament selection among three random members.
+	static int select(double[] fitness, Random random) {
+		int best = random.nextInt(fitness.length);
+		for (int t=0; t<2; t++) {
+			int other = random.nextInt(fitness.length);
+			if (fitness[other] > fitness[best])
+				best = other;
+		}
+		return best;
+	}
+
+	static String exportGenome(String className, byte[] genome, int k, int buckets) {
+		StringBuilder table = new StringBuilder();
+		for (int g=0; g<genome.length; g++) {
+			if (g > 0)
+				table.append(g % 32 == 0 ? ",\n\t\t\t" : ",");
+			table.append(genome[g]);
+		}
+		int states = 1 << (3*k);
+		return "\tclass " + className + " extends Player {\n"
+			+ "\t\t// Evolved lookup table over the last " + k + " rounds and " + buckets + " round buckets,\n"
+			+ "\t\t// followed by the " + k + " opening moves.\n"
+			+ "\t\tint[] table = {\n\t\t\t" + table + "};\n\n"
+			+ "\t\tint selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {\n"
+			+ "\t\t\tif (n < " + k + ")\n"
+			+ "\t\t\t\treturn table[" + buckets * states + " + n];\n"
+			+ "\t\t\tint state = 0;\n"
+			+ "\t\t\tfor (int r = n-" + k + "; r < n; r++)\n"
+			+ "\t\t\t\tstate = state * 8 + myHistory[r] * 4 + oppHistory1[r] * 2 + oppHistory2[r];\n"
+			+ "\t\t\tint bucket = Math.min(" + (buckets - 1) + ", n * " + buckets + " / " + MAX_ROUNDS + ");\n"
+			+ "\t\t\treturn table[bucket * " + states + " + state];\n"
+			+ "\t\t}\n"
+			+ "\t}";
+	}
+
+	/* Sampled tournaments, for rosters too large for the full i<=j<=k loop.
+	 Matches are played in passes: each pass shuffles the roster and cuts it into
+	 triples (topping up the last triple with random players), so within a pass
+	 every strategy plays once, or twice if it was used to top up, and over the
+	 run every strategy plays a balanced number of matches against random
+	 opponents. Passes are played until the match budget is used up, spread
+	 over threads, each pass and match seeded from the run seed.
+
+	 For each strategy we report the mean score per match with a 95% confidence
+	 interval, and the projected total for one repeat of the full tournament:
+	 every strategy fills 3*C(N+2,3)/N seats there, so the projection is the mean
+	 times that. Sampled opponents are almost always other strategies, while the
+	 full tournament also has matches against copies of oneself, so for small
+	 rosters the projection runs a little below the full tournament's total. */
+
+	// Running mean and variance (Welford), mergeable across threads.
+	static class Tally {
+		long count;
+		double mean, m2;
+
+		void add(double x) {
+			count++;
+			double delta = x - mean;
+			mean += delta / count;
+			m2 += delta * (x - mean);
+		}
+
+		void add(Tally other) {
+			if (other.count == 0)
+				return;
+			long total = count + other.count;
+			double delta = other.mean - mean;
+			mean += delta * other.count / total;
+			m2 += other.m2 + delta * delta * count * other.count / total;
+			count = total;
+		}
+
+		// Half-width of the 95% confidence interval of the mean.
+		double interval() {
+			return count < 2 ? Double.POSITIVE_INFINITY : 1.96 * Math.sqrt(m2 / (count - 1) / count);
+		}
+	}
+
+	void runSampled(Roster roster, long budget, long seed, int threads) throws InterruptedException, ExecutionException {
+		int numPlayers = roster.size();
+		int perPass = (numPlayers + 2) / 3;
+		int passes = (int)Math.max(1, (budget + perPass - 1) / perPass);
+		Map<Integer, Tally[]> parts = new ConcurrentSkipListMap<>(); // by first pass, so they merge in a fixed order
+		parallelFor(passes, threads, (from, to) -> {
+			Tally[] mine = new Tally[numPlayers];
+			for (int i=0; i<numPlayers; i++)
+				mine[i] = new Tally();
+			Random previous = rng.get();
+			try {
+				for (int pass=from; pass<to; pass++) {
+					Random shuffle = new Random(matchSeed(seed, pass));
+					int[] order = new int[perPass * 3];
+					for (int i=0; i<numPlayers; i++)
+						order[i] = i;
+					for (int i=numPlayers-1; i>0; i--) {
+						int j = shuffle.nextInt(i+1), swap = order[i];
+						order[i] = order[j]; order[j] = swap;
+					}
+					for (int i=numPlayers; i<order.length; i++)
+						order[i] = shuffle.nextInt(numPlayers);
+					for (int t=0; t<perPass; t++) {
+						rng.set(new Random(matchSeed(seed ^ 0x5A5A5A5AL, (long)pass * perPass + t)));
+						int a = order[3*t], b = order[3*t+1], c = order[3*t+2];
+						Player A = roster.make(this, a), B = roster.make(this, b), C = roster.make(this, c);
+						float[] matchResults = scoresOfMatch(A, B, C, drawRounds());
+						mine[a].add(matchResults[0]);
+						mine[b].add(matchResults[1]);
+						mine[c].add(matchResults[2]);
+					}
+				}
+			} finally {
+				rng.set(previous);
+			}
+			parts.put(from, mine);
+		});
+		Tally[] total = new Tally[numPlayers];
+		float[] mean = new float[numPlayers];
+		for (int i=0; i<numPlayers; i++) {
+			total[i] = new Tally();
+			for (Tally[] part : parts.values())
+				total[i].add(part[i]);
+			mean[i] = (float)total[i].mean;
+		}
+		double seats = 3.0 * multichoose(numPlayers, 3) / numPlayers;
+		System.out.println("Sampled Tournament Results (" + (long)passes * perPass + " matches, seed " + seed + ")");
+		int[] order = sortedOrder(mean);
+		for (int r=0; r<numPlayers; r++) {
+			Tally t = total[order[r]];
+			System.out.printf("%d. %s: %.4f +/- %.4f per match over %d matches, projected %.1f +/- %.1f points%n",
+				r+1, roster.names[order[r]], t.mean, t.interval(), t.count, t.mean * seats, t.interval() * seats);
+		}
+	}
+
+	/* Comparing variants of a strategy (YangLinRamal_Isaac_Player against
+	 YangLinRamal_Isaac_Player108 and 105, say) with common random numbers.
+	 Every sample picks a pair of opponents and a seed, and each variant plays
+	 that pair with exactly the same random numbers: the number of rounds comes
+	 from a stream of its own, and each seat draws from its own stream, both when
+	 the player is created and when it moves, so a variant drawing more or fewer
+	 numbers than another cannot shift what its opponents see. The differences
+	 between variants are then measured on matched samples, and the confidence
+	 interval of a paired difference is usually far narrower than that of two
+	 independent runs, which is reported next to it for comparison.
+
+	 With antithetic pairing every sample is also played with every uniform U
+	 replaced by 1 - U, and the sample is the mean of the two, which cancels part
+	 of the noise from the round count and the opponents' coin flips. */
+
+	// Gives 1 - U for every U the same generator would have given (kept in
+	// [0, 1) as nextDouble promises).
+	@SuppressWarnings("serial") // never serialized
+	static class AntitheticRandom extends Random {
+		AntitheticRandom(long seed) {
+			super(seed);
+		}
+
+		public double nextDouble() {
+			return 0x1.fffffffffffffp-1 - super.nextDouble();
+		}
+	}
+
+	// Plays a player with its own random stream, so that the numbers it draws
+	// come from that stream only and leave everyone else's alone.
+	class StreamPlayer extends Player {
+		final Player inner;
+		final Random stream;
+
+		StreamPlayer(Roster roster, int which, Random stream) {
+			this.stream = stream;
+			Random previous = rng.get();
+			rng.set(stream);
+			try {
+				inner = roster.make(ThreePrisonersDilemma.this, which);
+			} finally {
+				rng.set(previous);
+			}
+		}
+
+		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+			Random previous = rng.get();
+			rng.set(stream);
+			try {
+				return inner.selectAction(n, myHistory, oppHistory1, oppHistory2);
+			} finally {
+				rng.set(previous);
+			}
+		}
+	}
+
+	static Random commonStream(long sample, int stream, boolean antithetic) {
+		long seed = matchSeed(sample, stream);
+		return antithetic ? new AntitheticRandom(seed) : new Random(seed);
+	}
+
+	// The score of variant v in seat A against opponents j and k, with the
+	// random streams of the given sample.
+	float playVariant(Roster variants, int v, Roster opponents, int j, int k, long sample, boolean antithetic) {
+		Random previous = rng.get();
+		try {
+			rng.set(commonStream(sample, 0, antithetic));
+			int rounds = drawRounds();
+			Player A = new StreamPlayer(variants, v, commonStream(sample, 1, antithetic));
+			Player B = new StreamPlayer(opponents, j, commonStream(sample, 2, antithetic));
+			Player C = new StreamPlayer(opponents, k, commonStream(sample, 3, antithetic));
+			return scoresOfMatch(A, B, C, rounds)[0];
+		} finally {
+			rng.set(previous);
+		}
+	}
+
+	void runComparison(Roster variants, Roster opponents, int samples, long seed, boolean antithetic, int threads)
+			throws InterruptedException, ExecutionException {
+		int numVariants = variants.size(), numOpponents = opponents.size();
+		int[][] pairs = new int[(int)multichoose(numOpponents, 2)][];
+		for (int j=0, p=0; j<numOpponents; j++) for (int k=j; k<numOpponents; k++)
+			pairs[p++] = new int[] {j, k};
+		// Per part: the score of each variant, then each variant's difference from the first.
+		Map<Integer, Tally[]> parts = new ConcurrentSkipListMap<>();
+		parallelFor(samples, threads, (from, to) -> {
+			Tally[] mine = new Tally[2 * numVariants];
+			for (int v=0; v<mine.length; v++)
+				mine[v] = new Tally();
+			float[] score = new float[numVariants];
+			for (int s=from; s<to; s++) {
+				int[] pair = pairs[s % pairs.length];
+				long sample = matchSeed(seed, s);
+				for (int v=0; v<numVariants; v++) {
+					score[v] = playVariant(variants, v, opponents, pair[0], pair[1], sample, false);
+					if (antithetic)
+						score[v] = (score[v] + playVariant(variants, v, opponents, pair[0], pair[1], sample, true)) / 2;
+					mine[v].add(score[v]);
+					mine[numVariants + v].add(score[v] - score[0]);
+				}
+			}
+			parts.put(from, mine);
+		});
+		Tally[] total = new Tally[2 * numVariants];
+		for (int v=0; v<total.length; v++) {
+			total[v] = new Tally();
+			for (Tally[] part : parts.values())
+				total[v].add(part[v]);
+		}
+		System.out.println("Comparison over " + samples + " samples of " + pairs.length + " opponent pairs (seed " + seed
+			+ (antithetic ? ", antithetic pairs, " + 2L * samples * numVariants : ", " + (long)samples * numVariants) + " matches)");
+		for (int v=0; v<numVariants; v++)
+			System.out.printf("%s: %.4f +/- %.4f per match%n", variants.names[v], total[v].mean, total[v].interval());
+		for (int v=1; v<numVariants; v++) {
+			Tally paired = total[numVariants + v];
+			// The interval the same difference would have from independent runs.
+			double unpaired = 1.96 * Math.sqrt((total[0].m2 + total[v].m2) / (samples - 1) / samples);
+			System.out.printf("%s - %s: %+.4f +/- %.4f paired, +/- %.4f unpaired (%.1fx fewer samples for the same interval)%n",
+				variants.names[v], variants.names[0], paired.mean, paired.interval(), unpaired,
+				unpaired * unpaired / Math.max(paired.interval() * paired.interval(), 1e-300));
+		}
+	}
+
+	/* Payoff sweeps. To see how the standings depend on the payoff cube, a
+	 sweep scores the same seeded tournament under many matrices. The moves in a
+	 match do not depend on the payoffs (the strategies only see each other's
+	 actions), so each match is played once and only the number of rounds each
+	 of the eight joint actions was played is kept, packed one byte per joint
+	 action into a long. From those counts every player gets eight weights, the
+	 rounds it spent in each joint action seen from its own seat divided by the
+	 length of the match, and its total under a matrix is the dot product of its
+	 weights with the matrix's eight payoffs.
+
+	 Strategies that keep score themselves (PayoffAware) would play differently
+	 under another matrix, so their matches are left out of the weights and
+	 played again for every matrix, with the same random numbers and the matrix
+	 handed to them. A sweep therefore costs one tournament plus, per matrix,
+	 the matches of the payoff-aware strategies.
+
+	 A strategy that reads the payoffs without saying so would be scored as if
+	 its moves were fixed. Before sweeping, every other strategy is played
+	 against random lookup-table players, which never look at the payoffs,
+	 under the game's matrix and under some of the sweep's, each handed to the
+	 strategy as the visiblePayoff of its own ThreePrisonersDilemma instance;
+	 a strategy whose moves change is refused. The probe changes nothing
+	 shared, so it can run alongside other tournaments. A strategy with its
+	 own private copy of the matrix can only be found by its PayoffAware
+	 marker, and plugins cannot see the matrix at all. */
+
+	// A strategy whose moves depend on the payoffs. usePayoff is called before
+	// its first move with the matrix the match is scored with.
+	interface PayoffAware {
+		void usePayoff(int[][][] payoff);
+	}
+
+	static final int PROBE_MATCHES = 8, PROBE_MATRICES = 4;
+
+	// Throws if a strategy that is not PayoffAware plays differently under
+	// another matrix.
+	void probePayoffReaders(Roster roster, boolean[] aware, List<int[][][]> matrices, long seed) {
+		int length = GENOME_BUCKETS * (1 << (3*GENOME_K)) + GENOME_K;
+		Random previous = rng.get();
+		try {
+			for (int i=0; i<roster.size(); i++) {
+				if (aware[i])
+					continue;
+				for (int p=0; p<PROBE_MATCHES; p++) {
+					Random genes = new Random(matchSeed(seed, -1 - p));
+					byte[][] genomes = new byte[2][length];
+					for (byte[] genome : genomes)
+						for (int g=0; g<length; g++)
+							genome[g] = (byte)genes.nextInt(2);
+					long[] counts = new long[Math.min(PROBE_MATRICES, matrices.size()) + 1];
+					for (int x=0; x<counts.length; x++) {
+						ThreePrisonersDilemma probe = new ThreePrisonersDilemma();
+						probe.verbose = false;
+						probe.visiblePayoff = x == 0 ? visiblePayoff : matrices.get(x - 1);
+						rng.set(new Random(matchSeed(seed, -1 - p)));
+						Player A = roster.make(probe, i);
+						int rounds = drawRounds();
+						counts[x] = probe.jointActions(A, probe.new GenomePlayer(genomes[0], GENOME_K, GENOME_BUCKETS),
+							probe.new GenomePlayer(genomes[1], GENOME_K, GENOME_BUCKETS), rounds);
+						if (counts[x] != counts[0])
+							throw new IllegalArgumentException(roster.names[i] + " plays differently under the payoffs "
+								+ formatPayoff(probe.visiblePayoff) + " but is not PayoffAware, so a sweep cannot score it");
+					}
+				}
+			}
+		} finally {
+			rng.set(previous);
+		}
+	}
+
+	// Plays one match exactly like scoresOfMatch and returns how many rounds
+	// each joint action (4*A + 2*B + C) was played, a byte each.
+	long jointActions(Player A, Player B, Player C, int rounds) {
+		int[] HistoryA = new int[0], HistoryB = new int[0], HistoryC = new int[0];
+		long counts = 0;
+
+		for (int i=0; i<rounds; i++) {
+			int PlayA = A.selectAction(i, HistoryA, HistoryB, HistoryC);
+			int PlayB = B.selectAction(i, HistoryB, HistoryC, HistoryA);
+			int PlayC = C.selectAction(i, HistoryC, HistoryA, HistoryB);
+			counts += 1L << (8 * (4*PlayA + 2*PlayB + PlayC));
+			HistoryA = extendIntArray(HistoryA, PlayA);
+			HistoryB = extendIntArray(HistoryB, PlayB);
+			HistoryC = extendIntArray(HistoryC, PlayC);
+		}
+		return counts;
+	}
+
+	// Adds the weights of the three seats of one match.
+	static void addWeights(double[][] weights, int i, int j, int k, int rounds, long counts) {
+		for (int cell=0; cell<8; cell++) {
+			double share = (double)((counts >>> (8 * cell)) & 0xFF) / rounds;
+			int a = cell >> 2, b = (cell >> 1) & 1, c = cell & 1;
+			weights[i][cell] += share;
+			weights[j][4*b + 2*c + a] += share;
+			weights[k][4*c + 2*a + b] += share;
+		}
+	}
+
+	// A matrix given as the eight payoffs payoff[a][b][c] in the order 4a+2b+c,
+	// that is CCC CCD CDC CDD DCC DCD DDC DDD.
+	static int[][][] parsePayoff(String line) {
+		String[] values = line.trim().split("[\\s,]+");
+		if (values.length != 8)
+			throw new IllegalArgumentException("A payoff matrix needs 8 values: " + line);
+		int[][][] matrix = new int[2][2][2];
+		for (int cell=0; cell<8; cell++)
+			matrix[cell >> 2][(cell >> 1) & 1][cell & 1] = Integer.parseInt(values[cell]);
+		return matrix;
+	}
+
+	static String formatPayoff(int[][][] matrix) {
+		StringBuilder s = new StringBuilder();
+		for (int cell=0; cell<8; cell++)
+			s.append(cell == 0 ? "" : " ").append(matrix[cell >> 2][(cell >> 1) & 1][cell & 1]);
+		return s.toString();
+	}
+
+	// Reads matrices from a file, one per line, or makes count random ones with
+	// "random:<count>". Random matrices keep the ordering of the game,
+	// U(DCC) > U(CCC) > U(DDC) > U(CDC) > U(DDD) > U(CDD), with values up to 20.
+	static List<int[][][]> payoffMatrices(String spec, long seed) throws IOException {
+		List<int[][][]> matrices = new ArrayList<>();
+		if (spec.startsWith("random:")) {
+			Random random = new Random(seed);
+			for (int m=Integer.parseInt(spec.substring(7)); m>0; m--) {
+				int[] values = random.ints(0, 21).distinct().limit(6).sorted().toArray();
+				int CDD = values[0], DDD = values[1], CDC = values[2], DDC = values[3], CCC = values[4], DCC = values[5];
+				matrices.add(new int[][][] {{{CCC, CDC}, {CDC, CDD}}, {{DCC, DDC}, {DDC, DDD}}});
+			}
+			return matrices;
+		}
+		try (BufferedReader in = new BufferedReader(new FileReader(spec))) {
+			for (String line; (line = in.readLine()) != null;)
+				if (!line.trim().isEmpty() && !line.trim().startsWith("#"))
+					matrices.add(parsePayoff(line));
+		}
+		return matrices;
+	}
+
+	void runSweep(Roster roster, List<int[][][]> matrices, int repeat, long seed, int threads)
+			throws InterruptedException, ExecutionException {
+		int numPlayers = roster.size();
+		int[][] triples = triples(numPlayers);
+		long matches = (long)repeat * triples.length;
+		if (matches > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(matches + " matches are too many for one sweep; lower the repeat");
+		boolean[] aware = new boolean[numPlayers];
+		for (int i=0; i<numPlayers; i++)
+			aware[i] = PayoffAware.class.isAssignableFrom(roster.makers[i].getDeclaringClass());
+		probePayoffReaders(roster, aware, matrices, seed);
+
+		// Play every match once, keeping the weights of the matches whose moves
+		// cannot change and the numbers of the others.
+		long start = System.nanoTime();
+		Map<Integer, double[][]> weightParts = new ConcurrentSkipListMap<>();
+		Map<Integer, long[]> awareParts = new ConcurrentSkipListMap<>();
+		parallelFor((int)matches, threads, (from, to) -> {
+			double[][] weights = new double[numPlayers][8];
+			long[] replayed = new long[to - from];
+			int count = 0;
+			Random previous = rng.get();
+			try {
+				for (int m=from; m<to; m++) {
+					int[] t = triples[m % triples.length];
+					if (aware[t[0]] || aware[t[1]] || aware[t[2]]) {
+						replayed[count++] = m;
+						continue;
+					}
+					rng.set(new Random(matchSeed(seed, m)));
+					Player A = roster.make(this, t[0]);
+					Player B = roster.make(this, t[1]);
+					Player C = roster.make(this, t[2]);
+					int rounds = drawRounds();
+					addWeights(weights, t[0], t[1], t[2], rounds, jointActions(A, B, C, rounds));
+				}
+			} finally {
+				rng.set(previous);
+			}
+			weightParts.put(from, weights);
+			awareParts.put(from, Arrays.copyOf(replayed, count));
+		});
+		double[][] weights = new double[numPlayers][8];
+		for (double[][] part : weightParts.values())
+			for (int i=0; i<numPlayers; i++)
+				for (int cell=0; cell<8; cell++)
+					weights[i][cell] += part[i][cell];
+		long[] replayed = awareParts.values().stream().flatMapToLong(Arrays::stream).toArray();
+		long recorded = System.nanoTime() - start;
+
+		// Score every matrix: a dot product per player, plus the payoff-aware matches played again.
+		start = System.nanoTime();
+		float[][] totals = new float[matrices.size()][];
+		parallelFor(matrices.size(), threads, (from, to) -> {
+			Random previous = rng.get();
+			try {
+				for (int x=from; x<to; x++) {
+					int[][][] matrix = matrices.get(x);
+					double[][] own = new double[numPlayers][8];
+					for (long m : replayed) {
+						int[] t = triples[(int)(m % triples.length)];
+						rng.set(new Random(matchSeed(seed, m)));
+						Player A = roster.make(this, t[0]);
+						Player B = roster.make(this, t[1]);
+						Player C = roster.make(this, t[2]);
+						for (Player p : new Player[] {A, B, C})
+							if (p instanceof PayoffAware)
+								((PayoffAware) p).usePayoff(matrix);
+						int rounds = drawRounds();
+						addWeights(own, t[0], t[1], t[2], rounds, jointActions(A, B, C, rounds));
+					}
+					totals[x] = new float[numPlayers];
+					for (int i=0; i<numPlayers; i++) {
+						double total = 0;
+						for (int cell=0; cell<8; cell++)
+							total += (weights[i][cell] + own[i][cell]) * matrix[cell >> 2][(cell >> 1) & 1][cell & 1];
+						totals[x][i] = (float)(total / repeat); // points per repeat, as in printResults
+					}
+				}
+			} finally {
+				rng.set(previous);
+			}
+		});
+		long scored = System.nanoTime() - start;
+
+		System.out.println("Payoff sweep of " + matrices.size() + " matrices over " + matches + " matches (seed " + seed + ")");
+		System.out.println("Played every match once in " + recorded / 1000000 + " ms; " + replayed.length
+			+ " matches with payoff-aware strategies were played again for each matrix, in "
+			+ scored / 1000000 + " ms for all matrices");
+		int[] wins = new int[numPlayers];
+		double[] rankSum = new double[numPlayers];
+		for (int x=0; x<matrices.size(); x++) {
+			int[] order = sortedOrder(totals[x]);
+			wins[order[0]]++;
+			for (int r=0; r<numPlayers; r++)
+				rankSum[order[r]] += r+1;
+			StringBuilder line = new StringBuilder(formatPayoff(matrices.get(x)) + ":");
+			for (int r=0; r<Math.min(3, numPlayers); r++)
+				line.append(String.format(" %d. %s %.1f", r+1, roster.names[order[r]], totals[x][order[r]]));
+			System.out.println(line);
+		}
+		System.out.println();
+		System.out.println("Over all matrices:");
+		float[] meanRank = new float[numPlayers];
+		for (int i=0; i<numPlayers; i++)
+			meanRank[i] = (float)(-rankSum[i] / matrices.size());
+		int[] order = sortedOrder(meanRank);
+		for (int r=0; r<numPlayers; r++)
+			System.out.printf("%d. %s: mean rank %.2f, first under %d matrices%s%n", r+1, roster.names[order[r]],
+				-meanRank[order[r]], wins[order[r]], aware[order[r]] ? " (payoff-aware)" : "");
+	}
+
+	/* Swiss and knockout formats. The full round-robin plays C(N+2, 3) matches,
+	 which is out of reach for thousands of strategies, so these formats only
+	 play a few rounds of groups. Each round the entrants are cut into groups of
+	 three in their current order (a leftover pair plays (x, y, y) and
+	 (x, x, y), and a single leftover sits the round out), every group plays a
+	 few seeded matches, and the groups of a round are played in parallel.
+
+	 swiss   every round draws new groups at random and the final standing
+	         (mean score per match) is the ranking, after SWISS_ROUNDS times
+	         log2 N + 1 rounds of N/3 groups. Groups are not drawn by standing:
+	         the round-robin score is the mean over every pair of opponents,
+	         and pairing by standing (even one entrant from each third) gives
+	         entrants different mixes of opponents, which cut the agreement
+	         with the round-robin to a Spearman's rho of 0.4-0.8 over seeds
+	         against 0.75-0.9 for random groups.
+	 single  the best of each group goes through and the others are out; the
+	         ranking is by the round an entrant went out in, then mean score.
+	 double  losing once drops an entrant to a losers' bracket, losing there
+	         puts it out; the winners' champion meets the last of the losers'
+	         bracket in the final.
+
+	 A knockout rewards outscoring the others in the group, which in this game
+	 favours defectors, while the round-robin rewards the total score, so the
+	 knockouts agree with it much less than the Swiss format does.
+
+	 Rosters can be padded with random lookup-table strategies (GenomePlayer) to
+	 try the formats on thousands of entrants. For rosters small enough the
+	 full round-robin is played as well and the agreement of the two rankings
+	 is reported as Spearman's rho, Kendall's tau and the overlap of the top k,
+	 with a warning when rho is below LOW_AGREEMENT. */
+	static final int FORMAT_GAMES = 3, SWISS_ROUNDS = 3, REFERENCE_REPEAT = 10, COMPARE_LIMIT = 60, GENOME_K = 2,
+		GENOME_BUCKETS = 2;
+	static final double LOW_AGREEMENT = 0.5;
+
+	// A roster followed by generated GenomePlayers.
+	class Entrants {
+		final Roster roster;
+		final byte[][] genomes;
+		final String[] names;
+
+		Entrants(Roster roster, int generated, long seed) {
+			this.roster = roster;
+			Random random = new Random(seed);
+			genomes = new byte[generated][GENOME_BUCKETS * (1 << (3*GENOME_K)) + GENOME_K];
+			for (byte[] genome : genomes)
+				for (int g=0; g<genome.length; g++)
+					genome[g] = (byte)random.nextInt(2);
+			names = Arrays.copyOf(roster.names, roster.size() + generated);
+			for (int i=0; i<generated; i++)
+				names[roster.size() + i] = "Genome" + (i+1);
+		}
+
+		int size() {
+			return names.length;
+		}
+
+		Player make(int i) {
+			return i < roster.size() ? roster.make(ThreePrisonersDilemma.this, i)
+				: new GenomePlayer(genomes[i - roster.size()], GENOME_K, GENOME_BUCKETS);
+		}
+	}
+
+	// Running totals of a format: score and matches of every entrant.
+	static class Standing {
+		final double[] score;
+		final int[] matches;
+
+		Standing(int size) {
+			score = new double[size];
+			matches = new int[size];
+		}
+
+		float mean(int i) {
+			return matches[i] == 0 ? 0 : (float)(score[i] / matches[i]);
+		}
+	}
+
+	// Cuts entrants (in order) into groups of three, a pair and a single.
+	static List<int[]> groups(List<Integer> entrants) {
+		List<int[]> groups = new ArrayList<>();
+		for (int g=0; g<entrants.size(); g+=3) {
+			int[] group = new int[Math.min(3, entrants.size() - g)];
+			for (int p=0; p<group.length; p++)
+				group[p] = entrants.get(g + p);
+			groups.add(group);
+		}
+		return groups;
+	}
+
+	/* Plays one round of groups in parallel and adds the scores to the standing.
+	 Returns the winner of each group (the best mean in the group, ties to the
+	 earlier member), or the member itself for a single. Round r's group g
+	 plays matches numbered from (r * size + g) * 2 * FORMAT_GAMES, so every
+	 match has its own seed. */
+	int[] playRound(Entrants entrants, List<int[]> groups, int round, long seed, Standing standing, int threads)
+			throws InterruptedException, ExecutionException {
+		double[][] scores = new double[groups.size()][];
+		int[][] counts = new int[groups.size()][];
+		parallelFor(groups.size(), threads, (from, to) -> {
+			Random previous = rng.get();
+			try {
+				for (int g=from; g<to; g++) {
+					int[] group = groups.get(g);
+					scores[g] = new double[group.length];
+					counts[g] = new int[group.length];
+					if (group.length == 1)
+						continue;
+					int[][] seatings = group.length == 3 ? new int[][] {{0, 1, 2}} : new int[][] {{0, 1, 1}, {0, 0, 1}};
+					long match = ((long)round * entrants.size() + g) * 2 * FORMAT_GAMES;
+					for (int[] seats : seatings)
+						for (int x=0; x<FORMAT_GAMES; x++) {
+							rng.set(new Random(matchSeed(seed, match++)));
+							Player A = entrants.make(group[seats[0]]);
+							Player B = entrants.make(group[seats[1]]);
+							Player C = entrants.make(group[seats[2]]);
+							float[] matchResults = scoresOfMatch(A, B, C, drawRounds());
+							for (int s=0; s<3; s++) {
+								scores[g][seats[s]] += matchResults[s];
+								counts[g][seats[s]]++;
+							}
+						}
+				}
+			} finally {
+				rng.set(previous);
+			}
+		});
+		int[] winners = new int[groups.size()];
+		for (int g=0; g<groups.size(); g++) {
+			int[] group = groups.get(g);
+			int best = 0;
+			for (int p=0; p<group.length; p++) {
+				standing.score[group[p]] += scores[g][p];
+				standing.matches[group[p]] += counts[g][p];
+				if (counts[g][p] > 0 && scores[g][p] / counts[g][p] > scores[g][best] / counts[g][best])
+					best = p;
+			}
+			winners[g] = group[best];
+		}
+		return winners;
+	}
+
+	static int totalMatches(Standing standing) {
+		int seats = 0;
+		for (int m : standing.matches)
+			seats += m;
+		return seats / 3;
+	}
+
+	// A random starting order of all entrants.
+	static List<Integer> shuffled(int size, long seed) {
+		List<Integer> order = new ArrayList<>();
+		for (int i=0; i<size; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(seed));
+		return order;
+	}
+
+	int[] playSwiss(Entrants entrants, int rounds, long seed, Standing standing, int threads)
+			throws InterruptedException, ExecutionException {
+		for (int r=0; r<rounds; r++)
+			playRound(entrants, groups(shuffled(entrants.size(), matchSeed(seed, r))), r, seed, standing, threads);
+		return standingOrder(standing);
+	}
+
+	static int[] standingOrder(Standing standing) {
+		float[] mean = new float[standing.score.length];
+		for (int i=0; i<mean.length; i++)
+			mean[i] = standing.mean(i);
+		return sortedOrder(mean);
+	}
+
+	// Single or double elimination; returns the ranking.
+	int[] playKnockout(Entrants entrants, boolean twoLives, long seed, Standing standing, int threads)
+			throws InterruptedException, ExecutionException {
+		int size = entrants.size();
+		int[] out = new int[size]; // the round each entrant went out in; the champion never does
+		Arrays.fill(out, Integer.MAX_VALUE);
+		List<Integer> winners = shuffled(size, seed), losers = new ArrayList<>();
+		int round = 0;
+		while (winners.size() + losers.size() > 1) {
+			round++;
+			List<Integer> stillIn = new ArrayList<>(), dropped = new ArrayList<>();
+			if (winners.size() > 1) {
+				List<int[]> groups = groups(winners);
+				int[] best = playRound(entrants, groups, 2*round, seed, standing, threads);
+				for (int g=0; g<groups.size(); g++)
+					for (int i : groups.get(g))
+						(i == best[g] ? stillIn : dropped).add(i);
+			} else {
+				stillIn.addAll(winners);
+			}
+			List<Integer> survivors = new ArrayList<>();
+			if (twoLives && (losers.size() > 1 || (stillIn.size() == 1 && losers.size() == 1))) {
+				// The losers' bracket; once the winners' bracket is down to its
+				// champion, its last survivor joins the champion for the final.
+				boolean last = stillIn.size() == 1 && dropped.isEmpty() && losers.size() <= 2;
+				List<Integer> bracket = new ArrayList<>(last ? stillIn : Collections.emptyList());
+				bracket.addAll(losers);
+				if (last)
+					stillIn.clear();
+				List<int[]> groups = groups(bracket);
+				int[] best = playRound(entrants, groups, 2*round + 1, seed, standing, threads);
+				for (int g=0; g<groups.size(); g++)
+					for (int i : groups.get(g))
+						if (i == best[g])
+							(last ? stillIn : survivors).add(i);
+						else
+							out[i] = round;
+			} else {
+				survivors.addAll(losers);
+			}
+			for (int i : dropped)
+				if (twoLives)
+					survivors.add(i);
+				else
+					out[i] = round;
+			winners = stillIn;
+			losers = survivors;
+		}
+		Integer[] order = new Integer[size];
+		for (int i=0; i<size; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> out[a] != out[b] ? Integer.compare(out[b], out[a])
+			: standing.mean(a) != standing.mean(b) ? Float.compare(standing.mean(b), standing.mean(a))
+			: Integer.compare(a, b));
+		int[] ranking = new int[size];
+		for (int i=0; i<size; i++)
+			ranking[i] = order[i];
+		return ranking;
+	}
+
+	// The full round-robin over the entrants, in order of total score.
+	int[] roundRobinOrder(Entrants entrants, long seed, int threads) throws InterruptedException, ExecutionException {
+		int size = entrants.size();
+		int[][] triples = triples(size);
+		Map<Integer, double[]> parts = new ConcurrentSkipListMap<>();
+		parallelFor(REFERENCE_REPEAT * triples.length, threads, (from, to) -> {
+			double[] totals = new double[size];
+			Random previous = rng.get();
+			try {
+				for (int m=from; m<to; m++) {
+					int[] t = triples[m % triples.length];
+					rng.set(new Random(matchSeed(seed ^ 0x5A5A5A5AL, m)));
+					Player A = entrants.make(t[0]), B = entrants.make(t[1]), C = entrants.make(t[2]);
+					float[] matchResults = scoresOfMatch(A, B, C, drawRounds());
+					for (int s=0; s<3; s++)
+						totals[t[s]] += matchResults[s];
+				}
+			} finally {
+				rng.set(previous);
+			}
+			parts.put(from, totals);
+		});
+		float[] totals = new float[size];
+		for (double[] part : parts.values())
+			for (int i=0; i<size; i++)
+				totals[i] += part[i];
+		return sortedOrder(totals);
+	}
+
+	// Position of every entrant in an order.
+	static int[] positions(int[] order) {
+		int[] position = new int[order.length];
+		for (int r=0; r<order.length; r++)
+			position[order[r]] = r;
+		return position;
+	}
+
+	void runFormat(String format, Roster roster, int generated, long seed, int k, int threads)
+			throws InterruptedException, ExecutionException {
+		Entrants entrants = new Entrants(roster, generated, seed);
+		int size = entrants.size();
+		Standing standing = new Standing(size);
+		long start = System.nanoTime();
+		int[] ranking;
+		switch (format) {
+		case "swiss":
+			int rounds = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1)); // ceil(log2 size)
+			ranking = playSwiss(entrants, SWISS_ROUNDS * (rounds + 1), seed, standing, threads);
+			break;
+		case "single":
+		case "double":
+			ranking = playKnockout(entrants, format.equals("double"), seed, standing, threads);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown format " + format + " (swiss, single or double)");
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(format + " format over " + size + " entrants: " + totalMatches(standing) + " matches in "
+			+ elapsed / 1000000 + " ms (seed " + seed + ")");
+		k = Math.min(k, size);
+		for (int r=0; r<k; r++)
+			System.out.printf("%d. %s: %.4f per match over %d matches%n", r+1, entrants.names[ranking[r]],
+				standing.mean(ranking[r]), standing.matches[ranking[r]]);
+
+		if (size > COMPARE_LIMIT)
+			return;
+		start = System.nanoTime();
+		int[] reference = roundRobinOrder(entrants, seed, threads);
+		elapsed = System.nanoTime() - start;
+		int[] p = positions(ranking), q = positions(reference);
+		double d2 = 0;
+		long concordant = 0, discordant = 0;
+		for (int i=0; i<size; i++) {
+			d2 += (double)(p[i] - q[i]) * (p[i] - q[i]);
+			for (int j=i+1; j<size; j++) {
+				long sign = Long.signum(p[i] - p[j]) * Long.signum(q[i] - q[j]);
+				if (sign > 0)
+					concordant++;
+				else if (sign < 0)
+					discordant++;
+			}
+		}
+		double rho = size < 2 ? 1 : 1 - 6 * d2 / ((double)size * ((double)size * size - 1));
+		double tau = size < 2 ? 1 : (double)(concordant - discordant) / ((long)size * (size - 1) / 2);
+		int overlap = 0;
+		for (int r=0; r<k; r++)
+			if (q[ranking[r]] < k)
+				overlap++;
+		System.out.printf("Against the round-robin (%d matches in %d ms): Spearman's rho %.3f, Kendall's tau %.3f,"
+			+ " %d of the top %d in common%n", REFERENCE_REPEAT * multichoose(size, 3), elapsed / 1000000, rho, tau, overlap, k);
+		StringBuilder top = new StringBuilder("Round-robin top " + k + ":");
+		for (int r=0; r<k; r++)
+			top.append(r == 0 ? " " : ", ").append(entrants.names[reference[r]]);
+		System.out.println(top);
+		if (rho < LOW_AGREEMENT)
+			System.out.println("Warning: this ranking agrees poorly with the round-robin"
+				+ (format.equals("swiss") ? "" : "; knockouts rank by outscoring the group, not by total score"));
+	}
+
+	/* Equilibria of the population game. A tournament's match log gives the
+	 mean score of a player of strategy a in a match with b and c, for every
+	 triple. In a large population playing the mixture x, a player of strategy a
+	 meets two opponents drawn from x, so its fitness is
+
+		f_a(x) = sum over b, c of x_b x_c pay(a; b, c)
+
+	 and the population's mean is x.f(x). The mixture is a symmetric Nash
+	 equilibrium when no strategy earns more than the mean, and it is
+	 evolutionarily stable when, after a small share eps of mutants playing y
+	 arrives, the incumbents earn more than the mutants in the mixed population.
+
+	 Equilibria are found by running the replicator dynamics from the uniform
+	 mixture and from random ones, in the exponential form
+	 x_a <- x_a exp(h (f_a(x) - x.f(x))) (normalised), whose rest points are
+	 those of x_a <- x_a f_a(x) / x.f(x) but which with a large step h gets rid
+	 of strategies that only lose a fraction of a point much sooner. Strategies
+	 whose share falls below PRUNE are dropped, so the support shrinks as the
+	 dynamics go on, and fitness is only summed over pairs of opponents in the
+	 support and only computed for the strategies that need it, split across
+	 threads. Strategies dropped early are brought back when they would do well
+	 against the rest point (see replicate).
+
+	 Each rest point is checked for the Nash condition against every strategy,
+	 and then against every pure mutant and MIXED_MUTANTS random mixed ones at
+	 the INVASION sizes. That is only a sample of the mutants, so passing it
+	 does not prove the rest point an ESS; it means no sampled invader does
+	 better. A mutant that does exactly as well as the incumbents is allowed if
+	 the mixture it leads to is still an equilibrium, as it would be in an
+	 evolutionarily stable set. Such neutral mutants are common here: mixtures
+	 of strategies that never defect first all earn the same, so random starts
+	 end at many points of one set. Rest points joined by a segment of
+	 equilibria with the same mean score are reported together. */
+	static final double REPLICATOR_STEP = 20, PRUNE = 1e-9, REENTRY = 1e-3, CONVERGED = 1e-10, NASH_TOLERANCE = 1e-4, NEUTRAL = 1e-6;
+	static final int SMALL_WORK = 1 << 16, MAX_STEPS = 20000, SEGMENT_STEPS = 4, MIXED_MUTANTS = 20;
+	static final double[] INVASION = {1e-2, 1e-3};
+
+	static class FitnessTensor {
+		final int n;
+		// Triples (a <= b <= c) are numbered as in rankMultiset, which here is
+		// first[a] + within[b] - within[a] + (c - b).
+		final long[] first, within;
+		// The mean score of the strategy in each seat, three per triple.
+		final float[] pay;
+
+		FitnessTensor(TournamentResult result) {
+			n = result.names.length;
+			first = new long[n+1];
+			within = new long[n+1];
+			for (int v=0; v<n; v++) {
+				first[v+1] = first[v] + multichoose(n - v, 2);
+				within[v+1] = within[v] + (n - v);
+			}
+			if (3 * first[n] > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Too many strategies for a fitness tensor: " + n);
+			int triples = (int)first[n];
+			pay = new float[3 * triples];
+			double[] sums = new double[3 * triples];
+			int[] counts = new int[triples];
+			for (int m=0; m<result.matches; m++) {
+				int[] seat = {0, 1, 2};
+				int[] players = Arrays.copyOfRange(result.matchPlayers, 4*m, 4*m+3);
+				for (int i=1; i<3; i++) // sort the seats by player
+					for (int j=i; j>0 && players[seat[j]] < players[seat[j-1]]; j--) {
+						int swap = seat[j]; seat[j] = seat[j-1]; seat[j-1] = swap;
+					}
+				int t = index(players[seat[0]], players[seat[1]], players[seat[2]]);
+				for (int s=0; s<3; s++)
+					sums[3*t + s] += result.matchScores[3*m + seat[s]];
+				counts[t]++;
+			}
+			for (int a=0, t=0; a<n; a++) for (int b=a; b<n; b++) for (int c=b; c<n; c++, t++) {
+				if (counts[t] == 0)
+					throw new IllegalArgumentException("No match was played between " + result.names[a] + ", "
+						+ result.names[b] + " and " + result.names[c]);
+				// Seats held by the same strategy share their mean.
+				double s0 = sums[3*t], s1 = sums[3*t+1], s2 = sums[3*t+2];
+				if (a == b && b == c)
+					s0 = s1 = s2 = (s0 + s1 + s2) / 3;
+				else if (a == b)
+					s0 = s1 = (s0 + s1) / 2;
+				else if (b == c)
+					s1 = s2 = (s1 + s2) / 2;
+				pay[3*t] = (float)(s0 / counts[t]);
+				pay[3*t+1] = (float)(s1 / counts[t]);
+				pay[3*t+2] = (float)(s2 / counts[t]);
+			}
+		}
+
+		int index(int a, int b, int c) {
+			return (int)(first[a] + within[b] - within[a] + (c - b));
+		}
+
+		// The mean score of a player of strategy a with opponents b <= c.
+		float pay(int a, int b, int c) {
+			if (a <= b)
+				return pay[3*index(a, b, c)];
+			if (a <= c)
+				return pay[3*index(b, a, c) + 1];
+			return pay[3*index(b, c, a) + 2];
+		}
+
+		// Sets f[a] for the given strategies against opponents drawn from x,
+		// whose support (ascending) is given.
+		void fitness(double[] x, int[] support, int[] targets, double[] f, ExecutorService pool, int threads)
+				throws InterruptedException, ExecutionException {
+			// Small supports are summed on this thread; handing them out costs more.
+			long work = (long)targets.length * support.length * support.length;
+			int pieces = work < SMALL_WORK ? 1 : Math.max(1, Math.min(targets.length, threads * 4));
+			List<Future<?>> parts = new ArrayList<>();
+			for (int piece=0; piece<pieces; piece++) {
+				int from = (int)((long)targets.length * piece / pieces), to = (int)((long)targets.length * (piece+1) / pieces);
+				Runnable task = () -> {
+					for (int i=from; i<to; i++) {
+						int a = targets[i];
+						double sum = 0;
+						for (int p=0; p<support.length; p++) {
+							int b = support[p];
+							double pairs = 0;
+							for (int q=p+1; q<support.length; q++)
+								pairs += x[support[q]] * pay(a, b, support[q]);
+							sum += x[b] * (x[b] * pay(a, b, b) + 2 * pairs);
+						}
+						f[a] = sum;
+					}
+				};
+				if (pieces == 1)
+					task.run();
+				else
+					parts.add(pool.submit(task));
+			}
+			for (Future<?> part : parts)
+				part.get();
+		}
+
+		static int[] support(double[] x) {
+			int size = 0;
+			for (double share : x)
+				if (share > 0)
+					size++;
+			int[] support = new int[size];
+			for (int a=0, s=0; a<x.length; a++)
+				if (x[a] > 0)
+					support[s++] = a;
+			return support;
+		}
+
+		static int[] all(int n) {
+			int[] all = new int[n];
+			for (int a=0; a<n; a++)
+				all[a] = a;
+			return all;
+		}
+
+		double mean(double[] x, double[] f, int[] support) {
+			double mean = 0;
+			for (int a : support)
+				mean += x[a] * f[a];
+			return mean;
+		}
+
+		// Runs the replicator dynamics from x (in place) until it settles. A
+		// strategy that was dropped early on may do well against where the
+		// population ended up, so the best reply to the rest point is brought back
+		// with a share of REENTRY and the dynamics go on, until no strategy earns
+		// more than the mean. Tells whether that happened.
+		boolean replicate(double[] x, ExecutorService pool, int threads) throws InterruptedException, ExecutionException {
+			double[] f = new double[n];
+			for (int round=0; round<2*n; round++) {
+				boolean settled = settle(x, pool, threads);
+				int[] support = support(x);
+				fitness(x, support, all(n), f, pool, threads);
+				int reply = 0;
+				for (int a=1; a<n; a++)
+					if (f[a] > f[reply])
+						reply = a;
+				if (f[reply] - mean(x, f, support) <= NASH_TOLERANCE)
+					return settled;
+				for (int a=0; a<n; a++)
+					x[a] *= 1 - REENTRY;
+				x[reply] += REENTRY;
+			}
+			return false;
+		}
+
+		// Runs the replicator dynamics on the current support until it settles
+		// (the best strategy in it earns no more than the mean, so whatever still
+		// earns less only has a negligible share), and tells whether it did
+		// within MAX_STEPS.
+		boolean settle(double[] x, ExecutorService pool, int threads) throws InterruptedException, ExecutionException {
+			double[] f = new double[n];
+			for (int step=0; step<MAX_STEPS; step++) {
+				int[] support = support(x);
+				fitness(x, support, support, f, pool, threads);
+				double best = Double.NEGATIVE_INFINITY, total = 0, change = 0;
+				for (int a : support)
+					best = Math.max(best, f[a]);
+				if (best - mean(x, f, support) < NEUTRAL)
+					return true;
+				double[] next = new double[n];
+				for (int a : support)
+					total += next[a] = x[a] * Math.exp(REPLICATOR_STEP * (f[a] - best));
+				double kept = 0;
+				for (int a : support) {
+					if (next[a] < PRUNE * total)
+						next[a] = 0;
+					kept += next[a];
+				}
+				for (int a : support) {
+					next[a] /= kept;
+					change += Math.abs(next[a] - x[a]);
+				}
+				System.arraycopy(next, 0, x, 0, n);
+				if (change < CONVERGED)
+					return true;
+			}
+			return false;
+		}
+
+		// How much more than the mean the best strategy earns against x.
+		double regret(double[] x, ExecutorService pool, int threads) throws InterruptedException, ExecutionException {
+			double[] f = new double[n];
+			int[] support = support(x);
+			fitness(x, support, all(n), f, pool, threads);
+			double best = Double.NEGATIVE_INFINITY;
+			for (double fa : f)
+				best = Math.max(best, fa);
+			return best - mean(x, f, support);
+		}
+
+		// Whether the segment from x to y is made of equilibria with one mean score.
+		boolean connected(double[] x, double[] y, ExecutorService pool, int threads)
+				throws InterruptedException, ExecutionException {
+			double[] z = new double[n], f = new double[n];
+			double first = 0;
+			for (int step=0; step<=SEGMENT_STEPS; step++) {
+				for (int a=0; a<n; a++)
+					z[a] = x[a] + (y[a] - x[a]) * step / SEGMENT_STEPS;
+				if (regret(z, pool, threads) > NASH_TOLERANCE)
+					return false;
+				int[] support = support(z);
+				fitness(z, support, support, f, pool, threads);
+				double mean = mean(z, f, support);
+				if (step == 0)
+					first = mean;
+				else if (Math.abs(mean - first) > NASH_TOLERANCE)
+					return false;
+			}
+			return true;
+		}
+
+		// The incumbents' advantage over mutants y once they make up eps of the population.
+		double advantage(double[] x, double[] y, double eps, ExecutorService pool, int threads)
+				throws InterruptedException, ExecutionException {
+			double[] z = new double[n], f = new double[n];
+			for (int a=0; a<n; a++)
+				z[a] = (1 - eps) * x[a] + eps * y[a];
+			int[] support = support(z);
+			fitness(z, support, support, f, pool, threads);
+			double incumbents = 0, mutants = 0;
+			for (int a : support) {
+				incumbents += x[a] * f[a];
+				mutants += y[a] * f[a];
+			}
+			return incumbents - mutants;
+		}
+	}
+
+	void runEquilibria(Roster roster, int repeat, int starts, long seed, int threads)
+			throws InterruptedException, ExecutionException {
+		int n = roster.size();
+		long start = System.nanoTime();
+		TournamentResult result = playMatches(roster, seed, 0, repeat * multichoose(n, 3),
+			new TournamentResult(roster.names, repeat).keepMatchLog());
+		FitnessTensor tensor = new FitnessTensor(result);
+		System.out.printf("Fitness tensor of %d strategies from %d matches (seed %d) in %d ms%n",
+			n, result.matches, seed, (System.nanoTime() - start) / 1000000);
+
+		start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			Random random = new Random(seed);
+			List<double[]> limits = new ArrayList<>();
+			List<Boolean> settled = new ArrayList<>();
+			List<Integer> group = new ArrayList<>();
+			for (int s=0; s<starts; s++) {
+				// The uniform mixture first, then random ones spread evenly over the simplex.
+				double[] x = new double[n];
+				double total = 0;
+				for (int a=0; a<n; a++)
+					total += x[a] = s == 0 ? 1 : -Math.log(1 - random.nextDouble());
+				for (int a=0; a<n; a++)
+					x[a] /= total;
+				settled.add(tensor.replicate(x, pool, threads));
+				limits.add(x);
+				int joined = s;
+				for (int l=0; l<s && joined == s; l++)
+					if (group.get(l) == l && tensor.connected(limits.get(l), x, pool, threads))
+						joined = l;
+				group.add(joined);
+			}
+
+			for (int l=0; l<starts; l++) {
+				if (group.get(l) != l)
+					continue;
+				double[] x = limits.get(l);
+				int[] support = FitnessTensor.support(x);
+				double[] f = new double[n];
+				tensor.fitness(x, support, support, f, pool, threads);
+				Set<String> spanned = new TreeSet<>();
+				int reached = 0;
+				for (int s=l; s<starts; s++) {
+					if (group.get(s) != l)
+						continue;
+					reached++;
+					for (int a : FitnessTensor.support(limits.get(s)))
+						spanned.add(roster.names[a]);
+				}
+				System.out.printf("%nRest point from start %d (%d of %d starts end here%s), mean score %.4f per match:%n",
+					l+1, reached, starts, reached > 1 ? " or at equilibria joined to it" : "", tensor.mean(x, f, support));
+				Integer[] order = new Integer[support.length];
+				for (int p=0; p<support.length; p++)
+					order[p] = support[p];
+				Arrays.sort(order, (a, b) -> Double.compare(x[b], x[a]));
+				for (int a : order)
+					System.out.printf("  %.4f %s%n", x[a], roster.names[a]);
+				if (reached > 1)
+					System.out.println("  Joined rest points use " + String.join(", ", spanned));
+				if (!settled.get(l))
+					System.out.println("  Still moving after " + MAX_STEPS + " steps");
+				double regret = tensor.regret(x, pool, threads);
+				if (regret > NASH_TOLERANCE) {
+					System.out.printf("  Not an equilibrium: the best reply earns %.6f more than the mean%n", regret);
+					continue;
+				}
+				System.out.printf("  Symmetric Nash equilibrium (no strategy earns more than %.1e above the mean)%n",
+					Math.max(regret, 0));
+				System.out.println("  " + stability(tensor, x, support, roster, random, pool, threads));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		System.out.printf("%nSolved in %d ms%n", (System.nanoTime() - start) / 1000000);
+	}
+
+	String stability(FitnessTensor tensor, double[] x, int[] support, Roster roster, Random random, ExecutorService pool,
+			int threads) throws InterruptedException, ExecutionException {
+		int n = x.length;
+		boolean neutral = false;
+		for (int m=0; m<n+MIXED_MUTANTS; m++) {
+			double[] y = new double[n];
+			String name;
+			if (m < n) { // every pure strategy other than x itself
+				if (support.length == 1 && support[0] == m)
+					continue;
+				y[m] = 1;
+				name = roster.names[m];
+			} else { // a random mixture of the support and one strategy from anywhere
+				double total = 0;
+				for (int a : support)
+					total += y[a] = -Math.log(1 - random.nextDouble());
+				int other = random.nextInt(n);
+				total += y[other] += -Math.log(1 - random.nextDouble());
+				for (int a=0; a<n; a++)
+					y[a] /= total;
+				name = "a mixture with " + roster.names[other];
+			}
+			for (double eps : INVASION) {
+				double advantage = tensor.advantage(x, y, eps, pool, threads);
+				if (advantage > NEUTRAL)
+					continue;
+				double[] z = new double[n];
+				for (int a=0; a<n; a++)
+					z[a] = (1 - eps) * x[a] + eps * y[a];
+				if (advantage < -NEUTRAL || tensor.regret(z, pool, threads) > NASH_TOLERANCE)
+					return String.format("Not evolutionarily stable: invaded by %s (advantage %.2e at %.0e)", name, advantage, eps);
+				neutral = true;
+			}
+		}
+		String sampled = "every pure mutant and " + MIXED_MUTANTS + " random mixed ones";
+		return neutral ? "No sampled invader does better (" + sampled + "); some are neutral but stay in equilibrium"
+			: "No sampled invader does better (" + sampled + ")";
+	}
+
+	/* The scheduled tournament plays the same matches as playMatches with the
+	 same seed, but orders and shares out the work differently. Matches are
+	 numbered triple-major, t * repeat + x, with triples numbered by
+	 rankMultiset, so a contiguous range of numbers plays the repeats of a few
+	 neighbouring triples, which share their first player and mostly their
+	 second. Ranges are split on a fork/join pool, which lets idle workers steal
+	 work from busy ones when some triples (those with Chen_Zhiwei_Player, say)
+	 take much longer than others.
+
+	 Each worker keeps a memo of matches that turned out deterministic: if
+	 neither the constructors nor the match itself drew a random number, the
+	 result depends only on the triple and the number of rounds, and the next
+	 repeat of that triple with the same length reuses it instead of playing
+	 again. Only the 21 possible lengths can occur, so a deterministic triple is
+	 played at most 21 times however large the repeat. */
+
+	// Counts the numbers drawn from it, to tell which matches used randomness.
+	@SuppressWarnings("serial") // never serialized
+	static class CountingRandom extends Random {
+		long draws;
+
+		CountingRandom(long seed) {
+			super(seed);
+		}
+
+		public double nextDouble() {
+			draws++;
+			return super.nextDouble();
+		}
+	}
+
+	// Per worker: deterministic results by (triple, rounds), and which triples
+	// are known to construct their players without drawing.
+	static class ScheduleCache {
+		final Map<Long, float[]> results = new HashMap<>();
+		final Set<Long> quietConstructors = new HashSet<>();
+		long hits, played;
+	}
+
+	static final int SCHEDULE_GRAIN = 256;
+
+	TournamentResult playScheduled(Roster roster, int repeat, long seed, int threads) {
+		int numPlayers = roster.size();
+		long triples = multichoose(numPlayers, 3);
+		boolean cacheable = true;
+		for (boolean sandboxed : roster.sandboxed)
+			cacheable &= !sandboxed; // plugins may draw from Math.random() on another thread
+		final boolean memo = cacheable;
+		ThreadLocal<ScheduleCache> caches = ThreadLocal.withInitial(ScheduleCache::new);
+		List<ScheduleCache> allCaches = Collections.synchronizedList(new ArrayList<>());
+
+		@SuppressWarnings("serial") // never serialized
+		class Range extends RecursiveTask<TournamentResult> {
+			final long from, to;
+
+			Range(long from, long to) {
+				this.from = from;
+				this.to = to;
+			}
+
+			protected TournamentResult compute() {
+				if (to - from > SCHEDULE_GRAIN) {
+					long middle = (from + to) >>> 1;
+					Range left = new Range(from, middle);
+					left.fork();
+					TournamentResult result = new Range(middle, to).compute();
+					result.add(left.join()); // fixed order, so the totals do not depend on scheduling
+					return result;
+				}
+				ScheduleCache cache = caches.get();
+				if (cache.played == 0 && cache.hits == 0 && !allCaches.contains(cache))
+					allCaches.add(cache);
+				TournamentResult result = new TournamentResult(roster.names, repeat);
+				Random previous = rng.get();
+				try {
+					long t = from / repeat;
+					int[] m = unrankMultiset(t, numPlayers, 3);
+					for (long number = from; number < to; number++) {
+						if (number / repeat != t) {
+							t = number / repeat;
+							nextMultiset(m, numPlayers);
+						}
+						long x = number % repeat;
+						CountingRandom random = new CountingRandom(matchSeed(seed, x * triples + t));
+						rng.set(random);
+						float[] matchResults = null;
+						int rounds;
+						if (memo && cache.quietConstructors.contains(t)) {
+							rounds = drawRounds();
+							matchResults = cache.results.get(t * 128 + rounds);
+						} else {
+							rounds = -1;
+						}
+						if (matchResults != null) {
+							cache.hits++;
+						} else {
+							long before = random.draws;
+							Player A = roster.make(ThreePrisonersDilemma.this, m[0]);
+							Player B = roster.make(ThreePrisonersDilemma.this, m[1]);
+							Player C = roster.make(ThreePrisonersDilemma.this, m[2]);
+							boolean quiet = random.draws == before;
+							if (rounds < 0)
+								rounds = drawRounds();
+							long drawn = random.draws;
+							matchResults = scoresOfMatch(A, B, C, rounds);
+							cache.played++;
+							if (memo && quiet) {
+								cache.quietConstructors.add(t);
+								if (random.draws == drawn)
+									cache.results.put(t * 128 + rounds, matchResults);
+							}
+						}
+						result.record(m[0], m[1], m[2], rounds, matchResults);
+					}
+				} finally {
+					rng.set(previous);
+				}
+				return result;
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			TournamentResult result = pool.invoke(new Range(0, triples * repeat));
+			if (verbose) {
+				long hits = 0, played = 0;
+				for (ScheduleCache cache : allCaches) {
+					hits += cache.hits;
+					played += cache.played;
+				}
+				System.out.println(played + " matches played, " + hits + " taken from the memo of deterministic matches");
+			}
+			return result;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/* Sharded tournaments. The matches of a tournament are numbered x*T + t,
+	 where x is the repeat and t the position of the triple in the i<=j<=k loop
+	 (T triples in all), and a shard is a contiguous range of match numbers.
+	 Each match draws its randomness from a generator seeded with the tournament
+	 seed and the match number, so a shard gives the same result whichever
+	 process runs it and however many times it is re-run.
+
+	 The coordinator (runSharded) and the workers (runShardWorker) share a
+	 directory: worker n writes its partial scores to shard-n.part, renaming it
+	 into place only when complete. A part starts with a header giving the seed,
+	 repeat, shard count and match range it was played for. A shard whose worker
+	 fails or leaves no part file is run again, and shards already present are
+	 not re-run, so an interrupted run can be resumed; a part left by a run with
+	 other settings is played again rather than merged. Parts are merged in
+	 shard order, which makes the merged totals the same on every run with the
+	 same shard count. */
+
+	static final int SHARD_ATTEMPTS = 3;
+
+	// Every triple i<=j<=k of a field of numPlayers, in tournament order.
+	static int[][] triples(int numPlayers) {
+		List<int[]> result = new ArrayList<>();
+		for (int i=0; i<numPlayers; i++) for (int j=i; j<numPlayers; j++) for (int k=j; k<numPlayers; k++)
+			result.add(new int[] {i, j, k});
+		return result.toArray(new int[0][]);
+	}
+
+	static long matchSeed(long seed, long match) {
+		long z = seed + (match + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// Plays matches from (inclusive) to to (exclusive) of a seeded tournament.
+	TournamentResult playMatches(Roster roster, int repeat, long seed, long from, long to) {
+		return playMatches(roster, seed, from, to, new TournamentResult(roster.names, repeat));
+	}
+
+	TournamentResult playMatches(Roster roster, long seed, long from, long to, TournamentResult result) {
+		int[][] triples = triples(roster.size());
+		result.seed = seed;
+		Random previous = rng.get();
+		try {
+			for (long m = from; m < to; m++) {
+				int[] t = triples[(int)(m % triples.length)];
+				rng.set(new Random(matchSeed(seed, m)));
+				Player A = roster.make(this, t[0]);
+				Player B = roster.make(this, t[1]);
+				Player C = roster.make(this, t[2]);
+				int rounds = drawRounds();
+				result.record(t[0], t[1], t[2], rounds, scoresOfMatch(A, B, C, rounds));
+			}
+		} finally {
+			rng.set(previous);
+		}
+		return result;
+	}
+
+	static String shardHeader(long seed, int repeat, int shards, long matches, int shard) {
+		return "seed " + seed + " repeat " + repeat + " shards " + shards
+			+ " matches " + matches * shard / shards + " " + matches * (shard+1) / shards;
+	}
+
+	// Whether a part file exists and was written for this header.
+	static boolean partMatches(File part, String header) {
+		try (BufferedReader in = new BufferedReader(new FileReader(part))) {
+			return header.equals(in.readLine());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// shard-worker <dir> <roster> <repeat> <seed> <shard> <shards>
+	static void runShardWorker(String[] args) throws IOException {
+		File dir = new File(args[1]);
+		int repeat = Integer.parseInt(args[3]);
+		long seed = Long.parseLong(args[4]);
+		int shard = Integer.parseInt(args[5]);
+		int shards = Integer.parseInt(args[6]);
+		ThreePrisonersDilemma instance = new ThreePrisonersDilemma();
+		instance.verbose = false;
+		Roster roster = instance.parseRoster(args[2]);
+		long matches = (long)repeat * triples(roster.size()).length;
+		TournamentResult result = instance.playMatches(roster, repeat, seed,
+			matches * shard / shards, matches * (shard+1) / shards);
+
+		File part = new File(dir, "shard-" + shard + ".part");
+		File tmp = new File(dir, "shard-" + shard + ".tmp");
+		try (PrintWriter out = new PrintWriter(new FileWriter(tmp))) {
+			out.println(shardHeader(seed, repeat, shards, matches, shard));
+			for (int i=0; i<roster.size(); i++)
+				out.println(roster.names[i] + " " + result.totalScore[i] + " " + result.lossRecored[i][0]
+					+ " " + result.lossRecored[i][1] + " " + result.lossRecored[i][2]);
+		}
+		java.nio.file.Files.move(tmp.toPath(), part.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// shards <dir> <shards> <workers> <repeat> <seed> [roster]
+	static void runSharded(String[] args) throws IOException, InterruptedException {
+		File dir = new File(args[1]);
+		int shards = Integer.parseInt(args[2]);
+		int workers = Integer.parseInt(args[3]);
+		int repeat = Integer.parseInt(args[4]);
+		long seed = Long.parseLong(args[5]);
+		String rosterSpec = args.length > 6 ? args[6] : "field";
+		Roster roster = new ThreePrisonersDilemma().parseRoster(rosterSpec);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = System.getProperty("java.class.path");
+		long matches = (long)repeat * triples(roster.size()).length;
+		Deque<Integer> pending = new ArrayDeque<>();
+		for (int n=0; n<shards; n++) {
+			File part = new File(dir, "shard-" + n + ".part");
+			if (partMatches(part, shardHeader(seed, repeat, shards, matches, n)))
+				continue;
+			if (part.exists()) {
+				System.out.println(part + " was written for other settings, running it again");
+				part.delete();
+			}
+			pending.add(n);
+		}
+		int[] attempts = new int[shards];
+		Map<Integer, Process> running = new HashMap<>();
+		while (!pending.isEmpty() || !running.isEmpty()) {
+			while (!pending.isEmpty() && running.size() < workers) {
+				int n = pending.poll();
+				attempts[n]++;
+				List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", classPath, "ThreePrisonersDilemma",
+					"-budget", "" + pluginMoveBudget, "-alloc", "" + (pluginAllocationLimit >> 20)));
+				for (String path : pluginPaths)
+					command.addAll(Arrays.asList("-plugins", path));
+				command.addAll(Arrays.asList("shard-worker", dir.getPath(), rosterSpec,
+					"" + repeat, "" + seed, "" + n, "" + shards));
+				ProcessBuilder worker = new ProcessBuilder(command);
+				worker.redirectErrorStream(true);
+				worker.redirectOutput(new File(dir, "shard-" + n + ".log"));
+				running.put(n, worker.start());
+			}
+			Thread.sleep(20);
+			for (Iterator<Map.Entry<Integer, Process>> it = running.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<Integer, Process> e = it.next();
+				if (e.getValue().isAlive())
+					continue;
+				it.remove();
+				int n = e.getKey();
+				if (e.getValue().exitValue() == 0
+						&& partMatches(new File(dir, "shard-" + n + ".part"), shardHeader(seed, repeat, shards, matches, n)))
+					continue;
+				if (attempts[n] >= SHARD_ATTEMPTS)
+					throw new IOException("Shard " + n + " failed " + attempts[n] + " times, see "
+						+ new File(dir, "shard-" + n + ".log"));
+				System.out.println("Shard " + n + " failed, running it again");
+				pending.add(n);
+			}
+		}
+
+		TournamentResult result = new TournamentResult(roster.names, repeat);
+		for (int n=0; n<shards; n++) {
+			try (BufferedReader in = new BufferedReader(new FileReader(new File(dir, "shard-" + n + ".part")))) {
+				if (!shardHeader(seed, repeat, shards, matches, n).equals(in.readLine()))
+					throw new IOException("shard-" + n + ".part was written for other settings");
+				for (int i=0; i<roster.size(); i++) {
+					String line = in.readLine();
+					String[] fields = line == null ? new String[0] : line.split(" ");
+					if (fields.length != 5 || !fields[0].equals(roster.names[i]))
+						throw new IOException("shard-" + n + ".part does not match the roster " + rosterSpec);
+					result.totalScore[i] += Float.parseFloat(fields[1]);
+					for (int r=0; r<3; r++)
+						result.lossRecored[i][r] += Integer.parseInt(fields[2+r]);
+				}
+			}
+		}
+		new ThreePrisonersDilemma().printResults(result, System.out);
+	}
+
+	/* Start-up. BuildCDS.bat plays one default tournament with
+	 -XX:ArchiveClassesAtExit, which stores the runner and the strategy classes
+	 it loaded in an AppCDS archive, and RunClientCDS.bat starts the tournament
+	 from that archive. On JDK 17 this made no measurable difference to the
+	 time to the first match (115-155 ms either way, as reported by the bench
+	 mode), as the JDK's own classes are already shared by default; it is kept
+	 for slower machines and JDKs without a default archive. */
+
+	void runBenchmarks(int repeat) {
+		verbose = false;
+		Roster roster = defaultRoster();
+		scoresOfMatch(roster.make(this, 0), roster.make(this, 0), roster.make(this, 0), drawRounds());
+		long firstMatch = java.lang.management.ManagementFactory.getRuntimeMXBean().getUptime();
+		System.out.println("Time to first match: " + firstMatch + " ms after JVM start");
+
+		// Timings of an engine that does not match the reference are meaningless.
+		if (!runDifferentialTest(roster, 200, 1))
+			System.exit(1);
+
+		long start = System.nanoTime();
+		playTournament(roster, repeat);
+		long elapsed = System.nanoTime() - start;
+		long matches = (long)repeat * triples(roster.size()).length;
+		System.out.println("Tournament: " + matches + " matches in " + elapsed / 1000000 + " ms ("
+			+ matches * 1000000000L / Math.max(elapsed, 1) + " matches/s)");
+	}
+
+	/* Differential testing. Every faster match engine must play exactly like
+	 scoresOfMatch, down to quirks such as strategies reading history.length.
+	 runDifferentialTest plays seeded random cases (a triple from the roster in
+	 any seat order and a length of 1 to 120 rounds, to cover the end-game rules
+	 beyond 110) through scoresOfMatch and through each candidate engine, with
+	 the same random numbers, and compares every move of every round and the
+	 exact bits of the scores. A failing case is shrunk before it is reported:
+	 first to the fewest rounds, then each seat to the earliest roster entry,
+	 then to the smallest seed that still fails. */
+
+	// The engines that claim to play exactly like scoresOfMatch.
+	Map<String, MatchEngine> candidateEngines() {
+		Map<String, MatchEngine> engines = new LinkedHashMap<>();
+		engines.put("noisy engine, trembling hands, no noise", new NoisyEngine(0, false));
+		engines.put("noisy engine, misperception, no noise", new NoisyEngine(0, true));
+		engines.put("N-player engine with 3 players", (A, B, C, rounds) -> scoresOfNMatch(
+			new NPlayer[] {new LegacyNPlayer(A), new LegacyNPlayer(B), new LegacyNPlayer(C)}, rounds));
+		engines.put("event-driven engine", this::scoresOfEventMatch);
+		return engines;
+	}
+
+	// Plays one case, returning the moves of A, B and C followed by the scores.
+	int[][] playCase(MatchEngine engine, Roster roster, int[] seats, int rounds, long seed) {
+		Random previous = rng.get();
+		try {
+			rng.set(new Random(seed));
+			RecordingPlayer A = new RecordingPlayer(roster.make(this, seats[0]));
+			RecordingPlayer B = new RecordingPlayer(roster.make(this, seats[1]));
+			RecordingPlayer C = new RecordingPlayer(roster.make(this, seats[2]));
+			float[] scores = engine.play(A, B, C, rounds);
+			int[] bits = new int[scores.length];
+			for (int p=0; p<scores.length; p++)
+				bits[p] = Float.floatToRawIntBits(scores[p]);
+			return new int[][] {Arrays.copyOf(A.actions, A.rounds), Arrays.copyOf(B.actions, B.rounds),
+				Arrays.copyOf(C.actions, C.rounds), bits};
+		} finally {
+			rng.set(previous);
+		}
+	}
+
+	boolean sameCase(MatchEngine engine, Roster roster, int[] seats, int rounds, long seed) {
+		try {
+			return Arrays.deepEquals(playCase(this::scoresOfMatch, roster, seats, rounds, seed),
+				playCase(engine, roster, seats, rounds, seed));
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	boolean runDifferentialTest(Roster roster, int cases, long seed) {
+		boolean passed = true;
+		for (Map.Entry<String, MatchEngine> candidate : candidateEngines().entrySet()) {
+			MatchEngine engine = candidate.getValue();
+			int failures = 0;
+			for (int c=0; c<cases && failures == 0; c++) {
+				Random pick = new Random(matchSeed(seed, c));
+				int[] seats = {pick.nextInt(roster.size()), pick.nextInt(roster.size()), pick.nextInt(roster.size())};
+				int rounds = 1 + pick.nextInt(120);
+				long caseSeed = pick.nextLong();
+				if (sameCase(engine, roster, seats, rounds, caseSeed))
+					continue;
+				failures++;
+				// Shrink to a minimal reproduction.
+				for (int r=1; r<rounds; r++)
+					if (!sameCase(engine, roster, seats, r, caseSeed)) {
+						rounds = r;
+						break;
+					}
+				for (int p=0; p<3; p++)
+					for (int i=0; i<seats[p]; i++) {
+						int[] simpler = seats.clone();
+						simpler[p] = i;
+						if (!sameCase(engine, roster, simpler, rounds, caseSeed)) {
+							seats = simpler;
+							break;
+						}
+					}
+				for (long s=0; s<64 && s != caseSeed; s++)
+					if (!sameCase(engine, roster, seats, rounds, s)) {
+						caseSeed = s;
+						break;
+					}
+				System.out.println("FAIL " + candidate.getKey() + ": differs from scoresOfMatch with "
+					+ roster.names[seats[0]] + ", " + roster.names[seats[1]] + ", " + roster.names[seats[2]]
+					+ ", " + rounds + " rounds, seed " + caseSeed);
+			}
+			if (failures == 0)
+				System.out.println("ok   " + candidate.getKey() + ": " + cases + " cases identical to scoresOfMatch");
+			passed &= failures == 0;
+		}
+		return passed;
+	}
+
+	/* A local store of tournament results. A store is a directory holding two
+	 append-only files. runs.dat has one binary record per run with everything
+	 about it: time, seed, repeat, payoff matrix, roster, total scores, win/loss
+	 record, head-to-head sums and the log of every match. runs.idx is a text
+	 index written after each record, with one line per run giving the record's
+	 offset, one line per strategy giving its rank and score, and one line per
+	 pair of strategies that met giving the head-to-head sum and count, closed
+	 by an end line.
+
+	 Opening a store reads only the index, into maps keyed by strategy and by
+	 pair, so rank histories and head-to-head queries never touch runs.dat. A
+	 run that was written to runs.dat but missed the index (e.g. the process
+	 died in between) is indexed again the next time the store is opened. A
+	 record or index entry that was cut short is dropped with a warning and,
+	 when the store is opened for appending, the file truncated back to the
+	 last whole run; a store opened read-only (for queries) never changes
+	 either file. */
+	static class ResultStore {
+		static final int MAGIC = 0x33504452; // "3PDR"
+
+		// One line of the index: a strategy's rank and score in a run, or the
+		// head-to-head sum and count of a pair in a run.
+		static class Entry {
+			int run;
+			int rank;
+			double score;
+			int count;
+		}
+
+		final File data, index;
+		final boolean writable;
+		final List<Long> offsets = new ArrayList<>();
+		final List<String> summaries = new ArrayList<>();
+		final Map<String, List<Entry>> ranks = new HashMap<>();
+		final Map<String, List<Entry>> pairs = new HashMap<>();
+
+		// Opens a store for appending, or read-only: a read-only store never
+		// changes the files, and only indexes unindexed runs in memory.
+		ResultStore(File dir, boolean writable) throws IOException {
+			this.writable = writable;
+			if (!writable && !dir.isDirectory())
+				throw new FileNotFoundException(dir.getPath());
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create " + dir);
+			data = new File(dir, "runs.dat");
+			index = new File(dir, "runs.idx");
+			if (index.exists())
+				readIndex();
+			// Index any runs that made it into runs.dat but not into runs.idx, and
+			// cut off a record that was only partly written.
+			long indexed = offsets.isEmpty() ? 0 : offsets.get(offsets.size() - 1);
+			if (offsets.isEmpty() ? data.length() > 0 : indexed < data.length()) {
+				try (RandomAccessFile in = new RandomAccessFile(data, writable ? "rw" : "r")) {
+					long offset = indexed;
+					if (!offsets.isEmpty()) {
+						in.seek(offset);
+						in.readInt();
+						offset += 8 + in.readInt();
+					}
+					while (offset < in.length()) {
+						long size = -1;
+						if (offset + 8 <= in.length()) {
+							in.seek(offset);
+							size = in.readInt() == MAGIC ? in.readInt() : -1;
+						}
+						if (size < 0 || offset + 8 + size > in.length()) {
+							System.out.println(data + ": " + (writable ? "dropping" : "ignoring")
+								+ " an incomplete run at offset " + offset);
+							if (writable)
+								in.setLength(offset);
+							break;
+						}
+						writeIndex(offset, readRun(in, offset));
+						offset += 8 + size;
+					}
+				}
+			}
+		}
+
+		/* Reads runs.idx. The lines of a run are only taken once its "end" line
+		 has been read, so a run whose index entry was cut short (the process
+		 died while writing it) is dropped, and when writable the file is
+		 truncated back to the last whole run; the run is then indexed again
+		 from runs.dat if its record there is complete. */
+		void readIndex() throws IOException {
+			byte[] bytes = java.nio.file.Files.readAllBytes(index.toPath());
+			List<String> pending = new ArrayList<>();
+			long whole = 0;
+			int start = 0;
+			for (int end; start < bytes.length && (end = indexOf(bytes, (byte)'\n', start)) >= 0; start = end + 1) {
+				String line = new String(bytes, start, end - start);
+				if (line.startsWith("end\t")) {
+					pending.forEach(this::readIndexLine);
+					pending.clear();
+					whole = end + 1;
+				} else {
+					pending.add(line);
+				}
+			}
+			if (whole < bytes.length) {
+				System.out.println(index + ": " + (writable ? "dropping" : "ignoring")
+					+ " an incomplete index entry at offset " + whole);
+				if (writable)
+					try (RandomAccessFile out = new RandomAccessFile(index, "rw")) {
+						out.setLength(whole);
+					}
+			}
+		}
+
+		static int indexOf(byte[] bytes, byte b, int from) {
+			for (int i=from; i<bytes.length; i++)
+				if (bytes[i] == b)
+					return i;
+			return -1;
+		}
+
+		void readIndexLine(String line) {
+			String[] f = line.split("\t");
+			switch (f[0]) {
+			case "run":
+				offsets.add(Long.parseLong(f[2]));
+				summaries.add(f[3]);
+				break;
+			case "rank": {
+				Entry e = new Entry();
+				e.run = Integer.parseInt(f[1]);
+				e.rank = Integer.parseInt(f[3]);
+				e.score = Double.parseDouble(f[4]);
+				ranks.computeIfAbsent(f[2], x -> new ArrayList<>()).add(e);
+				break;
+			}
+			case "h2h": {
+				Entry e = new Entry();
+				e.run = Integer.parseInt(f[1]);
+				e.score = Double.parseDouble(f[4]);
+				e.count = Integer.parseInt(f[5]);
+				pairs.computeIfAbsent(f[2] + "\t" + f[3], x -> new ArrayList<>()).add(e);
+				break;
+			}
+			}
+		}
+
+		// Appends a run and indexes it; returns its run number.
+		int append(TournamentResult run) throws IOException {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buffer);
+			run.time = System.currentTimeMillis();
+			out.writeLong(run.time);
+			out.writeLong(run.seed);
+			out.writeInt(run.repeat);
+			for (int a=0; a<2; a++) for (int b=0; b<2; b++) for (int c=0; c<2; c++)
+				out.writeInt(run.payoff[a][b][c]);
+			int n = run.names.length;
+			if (n > Short.MAX_VALUE)
+				throw new IllegalArgumentException("The store keeps player numbers in 16 bits; " + n + " players are too many");
+			out.writeInt(n);
+			for (int i=0; i<n; i++) {
+				out.writeUTF(run.names[i]);
+				out.writeFloat(run.totalScore[i]);
+				for (int r=0; r<3; r++)
+					out.writeInt(run.lossRecored[i][r]);
+			}
+			for (int i=0; i<n; i++) for (int j=0; j<n; j++) {
+				out.writeFloat(run.headToHead[i][j]);
+				out.writeInt(run.meetings[i][j]);
+			}
+			out.writeInt(run.matches);
+			for (int m=0; m<run.matches; m++) {
+				for (int p=0; p<4; p++)
+					out.writeShort(run.matchPlayers[4*m+p]);
+				for (int p=0; p<3; p++)
+					out.writeFloat(run.matchScores[3*m+p]);
+			}
+			out.flush();
+			long offset = data.length();
+			try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(data, true)))) {
+				file.writeInt(MAGIC);
+				file.writeInt(buffer.size());
+				buffer.writeTo(file);
+			}
+			return writeIndex(offset, run);
+		}
+
+		int writeIndex(long offset, TournamentResult run) throws IOException {
+			int id = offsets.size();
+			StringBuilder lines = new StringBuilder();
+			lines.append("run\t" + id + "\t" + offset + "\t" + new Date(run.time) + ", seed " + run.seed + ", repeat "
+				+ run.repeat + ", " + run.names.length + " players\n");
+			int[] order = sortedOrder(run.totalScore);
+			for (int r=0; r<order.length; r++)
+				lines.append("rank\t" + id + "\t" + run.names[order[r]] + "\t" + (r+1) + "\t"
+					+ run.totalScore[order[r]] / run.repeat + "\n");
+			for (int i=0; i<run.names.length; i++) for (int j=0; j<run.names.length; j++)
+				if (run.meetings[i][j] > 0)
+					lines.append("h2h\t" + id + "\t" + run.names[i] + "\t" + run.names[j] + "\t"
+						+ run.headToHead[i][j] + "\t" + run.meetings[i][j] + "\n");
+			lines.append("end\t" + id + "\n");
+			if (writable)
+				try (Writer out = new BufferedWriter(new FileWriter(index, true))) {
+					out.write(lines.toString());
+				}
+			for (String line : lines.toString().split("\n"))
+				readIndexLine(line);
+			return id;
+		}
+
+		// Reads back the full record of a run.
+		TournamentResult readRun(int id) throws IOException {
+			try (RandomAccessFile in = new RandomAccessFile(data, "r")) {
+				return readRun(in, offsets.get(id));
+			}
+		}
+
+		TournamentResult readRun(RandomAccessFile file, long offset) throws IOException {
+			file.seek(offset);
+			if (file.readInt() != MAGIC)
+				throw new IOException("No run at offset " + offset + " of " + data);
+			byte[] record = new byte[file.readInt()];
+			file.readFully(record);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			long time = in.readLong();
+			long seed = in.readLong();
+			int repeat = in.readInt();
+			int[][][] payoff = new int[2][2][2];
+			for (int a=0; a<2; a++) for (int b=0; b<2; b++) for (int c=0; c<2; c++)
+				payoff[a][b][c] = in.readInt();
+			int n = in.readInt();
+			String[] names = new String[n];
+			float[] totalScore = new float[n];
+			int[][] lossRecored = new int[n][3];
+			for (int i=0; i<n; i++) {
+				names[i] = in.readUTF();
+				totalScore[i] = in.readFloat();
+				for (int r=0; r<3; r++)
+					lossRecored[i][r] = in.readInt();
+			}
+			TournamentResult run = new TournamentResult(names, repeat).keepDetails();
+			run.seed = seed;
+			run.time = time;
+			run.payoff = payoff;
+			run.totalScore = totalScore;
+			run.lossRecored = lossRecored;
+			for (int i=0; i<n; i++) for (int j=0; j<n; j++) {
+				run.headToHead[i][j] = in.readFloat();
+				run.meetings[i][j] = in.readInt();
+			}
+			run.matches = in.readInt();
+			run.matchPlayers = new int[4 * run.matches];
+			run.matchScores = new float[3 * run.matches];
+			for (int m=0; m<run.matches; m++) {
+				for (int p=0; p<4; p++)
+					run.matchPlayers[4*m+p] = in.readShort();
+				for (int p=0; p<3; p++)
+					run.matchScores[3*m+p] = in.readFloat();
+			}
+			return run;
+		}
+
+		List<Entry> rankHistory(String strategy) {
+			return ranks.getOrDefault(strategy, Collections.emptyList());
+		}
+
+		List<Entry> headToHead(String strategy, String opponent) {
+			return pairs.getOrDefault(strategy + "\t" + opponent, Collections.emptyList());
+		}
+	}
+
+	// store <dir> [repeat] [roster] [seed]
+	static void runStored(String[] args) throws IOException {
+		ResultStore store = new ResultStore(new File(args[1]), true);
+		int repeat = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		ThreePrisonersDilemma instance = new ThreePrisonersDilemma();
+		Roster roster = instance.parseRoster(args.length > 3 ? args[3] : "field");
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : System.nanoTime();
+		TournamentResult result = new TournamentResult(roster.names, repeat).keepDetails();
+		instance.playMatches(roster, seed, 0, (long)repeat * triples(roster.size()).length, result);
+		instance.printResults(result, System.out);
+		System.out.println("Stored as run " + store.append(result) + " of " + args[1]);
+	}
+
+	// query <dir> runs | rank <strategy> | vs <strategy> <opponent>
+	static void queryStore(String[] args) throws IOException {
+		ResultStore store = new ResultStore(new File(args[1]), false);
+		switch (args[2]) {
+		case "runs":
+			for (int id=0; id<store.summaries.size(); id++)
+				System.out.println(id + ": " + store.summaries.get(id));
+			break;
+		case "rank":
+			for (ResultStore.Entry e : store.rankHistory(args[3]))
+				System.out.println("Run " + e.run + ": rank " + e.rank + ", " + e.score + " points");
+			break;
+		case "vs":
+			double sum = 0;
+			int count = 0;
+			for (ResultStore.Entry e : store.headToHead(args[3], args[4])) {
+				System.out.println("Run " + e.run + ": " + (float)(e.score / e.count) + " points per match over " + e.count + " matches");
+				sum += e.score;
+				count += e.count;
+			}
+			System.out.println(args[3] + " against " + args[4] + ": "
+				+ (count == 0 ? "never met" : (float)(sum / count) + " points per match over " + count + " matches"));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown query " + args[2]);
+		}
+	}
+
+	// Records the actions of a player on either the history-based or the
+	// event-driven engines, passing the calls straight through to it.
+	class RecordingPlayer extends EventPlayer {
+		final Player inner;
+		EventPlayer events; // made on the first event, as history-based engines never need it
+		int[] actions = new int[MAX_ROUNDS];
+		int rounds = 0;
+
+		RecordingPlayer(Player inner) {
+			this.inner = inner;
+		}
+
+		int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {
+			return record(inner.selectAction(n, myHistory, oppHistory1, oppHistory2));
+		}
+
+		EventPlayer eventPlayer() {
+			if (events == null)
+				events = events(inner);
+			return events;
+		}
+
+		void onRoundResult(int myAction, int opp1Action, int opp2Action) {
+			eventPlayer().onRoundResult(myAction, opp1Action, opp2Action);
+		}
+
+		int nextAction(int n) {
+			return record(eventPlayer().nextAction(n));
+		}
+
+		int record(int action) {
+			if (rounds == actions.length)
+				actions = Arrays.copyOf(actions, 2 * rounds);
+			actions[rounds++] = action;
+			return action;
+		}
+	}
+
+	/* Match traces. The trace mode plays a seeded tournament exactly as
+	 playMatches does and records every round of every match off the heap, in
+	 memory-mapped segment files. Each match takes one fixed-size record:
+
+		int match number, short i, j, k, byte rounds, byte unused,
+		long seed of the match, then 3 bits per round (A, B, C) packed into
+		TRACE_ACTION_BYTES bytes
+
+	 so a match is found by its number alone, and 130,000 matches of 110 rounds
+	 take about 8MB: segments are sized for the matches of the trace, not the
+	 full TRACE_SEGMENT_RECORDS. trace.hdr holds the tournament seed, repeat,
+	 roster, match count and the names the roster resolved to. The replay mode
+	 plays a match again from its seed and checks every round against the
+	 trace, or checks the whole trace when no match is given; it refuses a
+	 trace whose roster now resolves to other strategies. */
+
+	static final int TRACE_RECORD = 64;
+	static final int TRACE_ACTION_BYTES = 44;
+	static final int TRACE_SEGMENT_RECORDS = 1 << 20; // 64MB per segment
+
+	static class TraceStore implements Closeable {
+		final File dir;
+		final boolean writable;
+		final long records; // the number of matches, when writing
+		final List<java.nio.MappedByteBuffer> segments = new ArrayList<>();
+		final List<java.nio.channels.FileChannel> channels = new ArrayList<>();
+
+		TraceStore(File dir, boolean writable, long records) {
+			this.dir = dir;
+			this.writable = writable;
+			this.records = records;
+			// Segments left over from a longer trace in the same directory.
+			long n = (records + TRACE_SEGMENT_RECORDS - 1) / TRACE_SEGMENT_RECORDS;
+			while (writable && new File(dir, "segment-" + n + ".bin").delete())
+				n++;
+		}
+
+		java.nio.MappedByteBuffer segment(int n) throws IOException {
+			while (segments.size() <= n) {
+				File file = new File(dir, "segment-" + segments.size() + ".bin");
+				java.nio.channels.FileChannel channel = writable
+					? new RandomAccessFile(file, "rw").getChannel()
+					: new RandomAccessFile(file, "r").getChannel();
+				channels.add(channel);
+				long size = channel.size();
+				if (writable) {
+					// Exactly the records of this segment; the file is cut to size before it
+					// is mapped, as a mapped file cannot be truncated on every platform.
+					size = Math.min(TRACE_SEGMENT_RECORDS, records - (long)TRACE_SEGMENT_RECORDS * segments.size())
+						* TRACE_RECORD;
+					channel.truncate(size);
+				}
+				segments.add(channel.map(writable ? java.nio.channels.FileChannel.MapMode.READ_WRITE
+					: java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, size));
+			}
+			return segments.get(n);
+		}
+
+		void write(int match, int i, int j, int k, int rounds, long seed, int[] a, int[] b, int[] c) throws IOException {
+			java.nio.MappedByteBuffer buffer = segment(match / TRACE_SEGMENT_RECORDS);
+			int at = (match % TRACE_SEGMENT_RECORDS) * TRACE_RECORD;
+			buffer.putInt(at, match);
+			buffer.putShort(at+4, (short)i);
+			buffer.putShort(at+6, (short)j);
+			buffer.putShort(at+8, (short)k);
+			buffer.put(at+10, (byte)rounds);
+			buffer.putLong(at+12, seed);
+			for (int x=0; x<TRACE_ACTION_BYTES; x++)
+				buffer.put(at+20+x, (byte)0);
+			for (int r=0; r<rounds; r++) {
+				int joint = a[r] << 2 | b[r] << 1 | c[r];
+				for (int bit=0; bit<3; bit++) {
+					int position = 3*r + bit;
+					if ((joint >> (2-bit) & 1) == 1)
+						buffer.put(at+20 + position/8, (byte)(buffer.get(at+20 + position/8) | 1 << (position%8)));
+				}
+			}
+		}
+
+		// The joint actions of a match as A*4 + B*2 + C per round; header fields in
+		// header[0..4] (match, i, j, k, rounds) and the match seed in seed[0].
+		int[] read(int match, int[] header, long[] seed) throws IOException {
+			java.nio.MappedByteBuffer buffer = segment(match / TRACE_SEGMENT_RECORDS);
+			int at = (match % TRACE_SEGMENT_RECORDS) * TRACE_RECORD;
+			header[0] = buffer.getInt(at);
+			header[1] = buffer.getShort(at+4);
+			header[2] = buffer.getShort(at+6);
+			header[3] = buffer.getShort(at+8);
+			header[4] = buffer.get(at+10) & 0xff;
+			seed[0] = buffer.getLong(at+12);
+			int[] joint = new int[header[4]];
+			for (int r=0; r<joint.length; r++)
+				for (int bit=0; bit<3; bit++) {
+					int position = 3*r + bit;
+					joint[r] = joint[r] << 1 | (buffer.get(at+20 + position/8) >> (position%8) & 1);
+				}
+			return joint;
+		}
+
+		public void close() throws IOException {
+			for (java.nio.MappedByteBuffer segment : segments)
+				if (writable)
+					segment.force();
+			for (java.nio.channels.FileChannel channel : channels)
+				channel.close();
+		}
+	}
+
+	// trace <dir> <repeat> <seed> [roster]
+	static void recordTrace(String[] args) throws IOException {
+		File dir = new File(args[1]);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create " + dir);
+		int repeat = Integer.parseInt(args[2]);
+		long seed = Long.parseLong(args[3]);
+		String rosterSpec = args.length > 4 ? args[4] : "field";
+		ThreePrisonersDilemma instance = new ThreePrisonersDilemma();
+		Roster roster = instance.parseRoster(rosterSpec);
+		int[][] triples = triples(roster.size());
+		long matches = (long)repeat * triples.length;
+		if (matches > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many matches to trace");
+		try (DataOutputStream header = new DataOutputStream(new FileOutputStream(new File(dir, "trace.hdr")))) {
+			header.writeLong(seed);
+			header.writeInt(repeat);
+			header.writeUTF(rosterSpec);
+			header.writeInt((int)matches);
+			header.writeInt(roster.size());
+			for (String name : roster.names)
+				header.writeUTF(name);
+		}
+		TournamentResult result = new TournamentResult(roster.names, repeat);
+		Random previous = rng.get();
+		try (TraceStore store = new TraceStore(dir, true, matches)) {
+			for (int m=0; m<matches; m++) {
+				int[] t = triples[m % triples.length];
+				long matchSeed = matchSeed(seed, m);
+				rng.set(new Random(matchSeed));
+				RecordingPlayer A = instance.new RecordingPlayer(roster.make(instance, t[0]));
+				RecordingPlayer B = instance.new RecordingPlayer(roster.make(instance, t[1]));
+				RecordingPlayer C = instance.new RecordingPlayer(roster.make(instance, t[2]));
+				int rounds = drawRounds();
+				result.record(t[0], t[1], t[2], rounds, instance.scoresOfMatch(A, B, C, rounds));
+				store.write(m, t[0], t[1], t[2], rounds, matchSeed, A.actions, B.actions, C.actions);
+			}
+		} finally {
+			rng.set(previous);
+		}
+		instance.printResults(result, System.out);
+		System.out.println("Traced " + matches + " matches into " + dir);
+	}
+
+	// replay <dir> [match]
+	static void replayTrace(String[] args) throws IOException {
+		File dir = new File(args[1]);
+		String rosterSpec;
+		int matches;
+		String[] names;
+		try (DataInputStream header = new DataInputStream(new FileInputStream(new File(dir, "trace.hdr")))) {
+			header.readLong();
+			header.readInt();
+			rosterSpec = header.readUTF();
+			matches = header.readInt();
+			names = new String[header.readInt()];
+			for (int i=0; i<names.length; i++)
+				names[i] = header.readUTF();
+		}
+		ThreePrisonersDilemma instance = new ThreePrisonersDilemma();
+		Roster roster = instance.parseRoster(rosterSpec);
+		if (!Arrays.equals(names, roster.names))
+			throw new IOException("The trace was recorded with " + String.join(", ", names)
+				+ " but " + rosterSpec + " is now " + String.join(", ", roster.names));
+		int from = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		int to = args.length > 2 ? from + 1 : matches;
+		int mismatches = 0;
+		Random previous = rng.get();
+		try (TraceStore store = new TraceStore(dir, false, 0)) {
+			for (int m=from; m<to; m++) {
+				int[] header = new int[5];
+				long[] seed = new long[1];
+				int[] traced = store.read(m, header, seed);
+				rng.set(new Random(seed[0]));
+				RecordingPlayer A = instance.new RecordingPlayer(roster.make(instance, header[1]));
+				RecordingPlayer B = instance.new RecordingPlayer(roster.make(instance, header[2]));
+				RecordingPlayer C = instance.new RecordingPlayer(roster.make(instance, header[3]));
+				int rounds = drawRounds();
+				float[] matchResults = instance.scoresOfMatch(A, B, C, rounds);
+				int diverged = rounds == header[4] ? -1 : 0;
+				for (int r=0; r<rounds && r<traced.length && diverged < 0; r++)
+					if ((A.actions[r] << 2 | B.actions[r] << 1 | C.actions[r]) != traced[r])
+						diverged = r;
+				if (diverged >= 0)
+					mismatches++;
+				if (to - from == 1) {
+					System.out.println("Match " + m + ": " + roster.names[header[1]] + ", " + roster.names[header[2]]
+						+ ", " + roster.names[header[3]] + ", " + header[4] + " rounds");
+					for (int r=0; r<traced.length; r++)
+						System.out.println("  round " + r + ": " + (traced[r] >> 2) + " " + (traced[r] >> 1 & 1) + " " + (traced[r] & 1)
+							+ (r < rounds && (A.actions[r] << 2 | B.actions[r] << 1 | C.actions[r]) != traced[r] ? "  <- replay differs" : ""));
+					System.out.println("Replayed scores: " + matchResults[0] + ", " + matchResults[1] + ", " + matchResults[2]);
+				}
+				if (diverged >= 0)
+					System.out.println("Match " + m + " diverges from its trace at round " + diverged);
+			}
+		} finally {
+			rng.set(previous);
+		}
+		System.out.println((to - from) + " matches replayed, " + mismatches + " differ from the trace");
+	}
+
+	/* Runs every tournament listed in a manifest inside this JVM. Each line of
+	 the manifest reads
+
+		<job name> <repeat> <roster>
+
+	 where the roster is as accepted by parseRoster; blank lines and lines
+	 starting with '#' are skipped. Jobs are queued in manifest order on a fixed
+	 pool of worker threads, so a long job never holds up more than one worker.
+	 Every job gets its own ThreePrisonersDilemma, which keeps player state,
+	 counters and results of different jobs apart; a job that fails, or a line
+	 that cannot be parsed, is reported and does not affect the others. Results
+	 are printed in manifest order. */
+	static void runBatch(String manifestPath, int threads) throws IOException, InterruptedException {
+		List<String> jobNames = new ArrayList<>();
+		List<Future<String>> jobs = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try (BufferedReader in = new BufferedReader(new FileReader(manifestPath))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				jobNames.add(fields[0]);
+				final int repeat;
+				final ThreePrisonersDilemma job = new ThreePrisonersDilemma();
+				final Roster roster;
+				try {
+					if (fields.length != 3)
+						throw new IllegalArgumentException("expected <job name> <repeat> <roster>");
+					repeat = Integer.parseInt(fields[1]);
+					if (repeat < 1)
+						throw new IllegalArgumentException("repeat must be at least 1");
+					job.verbose = false;
+					roster = job.parseRoster(fields[2]);
+				} catch (RuntimeException e) {
+					jobs.add(CompletableFuture.failedFuture(new IllegalArgumentException(
+						manifestPath + ":" + lineNumber + ": " + e.getMessage(), e)));
+					continue;
+				}
+				jobs.add(pool.submit(() -> {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					PrintStream out = new PrintStream(buffer);
+					job.printResults(job.playTournament(roster, repeat), out);
+					out.flush();
+					return buffer.toString();
+				}));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		for (int i=0; i<jobs.size(); i++) {
+			System.out.println("=== " + jobNames.get(i) + " ===");
+			try {
+				System.out.println(jobs.get(i).get());
+			} catch (ExecutionException e) {
+				System.out.println("Job failed: " + e.getCause());
+			}
+		}
+	}
 } // end of class PrisonersDilemma
 
@@ -1,4 +1,7 @@
 //Ignore error; extends Player is requirement for assignment
+//This is the submitted form. ThreePrisonersDilemma.java carries the same
+//strategy as an EventPlayer (onRoundResult/nextAction), which plays the same
+//moves; keep the two in step when either changes.
 class YangLinRamal_Isaac_Player extends Player{ 
     boolean opp1Def = false,opp2Def = false;  
     int selectAction(int n, int[] myHistory, int[] oppHistory1, int[] oppHistory2) {